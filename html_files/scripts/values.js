@@ -9,4 +9,30 @@ function sendValuesToGraph(values) {
     const graphFrame = window.parent.document.getElementById('graphFrame');
     // Send a message to the graphFrame
     graphFrame.contentWindow.postMessage({type: 'updateValues', values: values}, '*');
-}
\ No newline at end of file
+}
+
+/**
+ * This function listens to the topic updates streamed by the server.
+ * Each update refreshes the matching rows of the values table and is sent to the graphFrame.
+ */
+function listenForValues() {
+    const source = new EventSource('/events');
+    // The frame is reloaded after every publish, end this stream at once instead of leaving it to the server
+    window.addEventListener('pagehide', () => source.close());
+    source.addEventListener('values', function (event) {
+        const values = {};
+        const table = document.querySelector('table');
+        for (const update of JSON.parse(event.data)) {
+            let row = Array.from(table.rows).find(r => r.cells[0].textContent === update.topic);
+            if (!row) {
+                row = table.insertRow();
+                row.insertCell().textContent = update.topic;
+                row.insertCell();
+            }
+            row.cells[1].textContent = typeof update.value === 'number' ? update.value.toFixed(2) : update.value;
+            if (update.id !== null)
+                values[update.id] = update.value;
+        }
+        sendValuesToGraph(values);
+    });
+}
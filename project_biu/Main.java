@@ -1,3 +1,4 @@
+import graph.ParallelAgent;
 import server.*;
 import servlets.*;
 
@@ -9,12 +10,61 @@ import java.net.UnknownHostException;
 public class Main {
     private static boolean stop;
 
-    public static void startServer() {
-        HTTPServer myServer = new MyHTTPServer(8080, 5);
+    /**
+     * Creates the HTTP server for the requested connection engine.
+     *
+     * @param engine "nio" for the selector based server, "virtual" for a virtual thread per connection,
+     *               anything else for the thread pool server.
+     * @return the server, not yet started.
+     * @throws UnsupportedOperationException if "virtual" is asked for on a runtime without virtual threads.
+     */
+    public static HTTPServer createServer(String engine) {
+        if (engine.equals("nio"))
+            return new NioHTTPServer(8080, 2, 16);
+        if (engine.equals("virtual"))
+            return MyHTTPServer.withVirtualThreads(8080, 1000);
+        return new MyHTTPServer(8080, 16);
+    }
+
+    /**
+     * Starts the server and serves until q is entered.
+     *
+     * @param engine       the connection engine, see {@link #createServer(String)}.
+     * @param agents "compiled" to evaluate loaded configurations as a compiled plan, a number of threads to run
+     *               their agents as actors on a shared pool, anything else to run every agent on the thread that
+     *               publishes to its topics.
+     */
+    public static void startServer(String engine, String agents) {
+        HTTPServer myServer;
+        try {
+            myServer = createServer(engine);
+        } catch (UnsupportedOperationException e) {
+            System.out.println("Can't start server: " + e.getMessage() + ", run it with pool or nio instead");
+            return;
+        }
 
         myServer.addServlet("GET", "/publish", new TopicDisplayer());
+        myServer.addServlet("POST", "/publish/batch", new BatchPublisher());
+        TopicApi topicApi = new TopicApi();
+        myServer.addServlet("GET", "/api/topics", topicApi);
+        myServer.addServlet("GET", "/api/topics/{name}", topicApi);
+        myServer.addServlet("GET", "/api/graph", new GraphApi());
+        myServer.addServlet("GET", "/events", new TopicStreamer());
+        myServer.addServlet("GET", "/ws", new TopicSocket());
         myServer.addServlet("GET", "/app/", new HtmlLoader("html_files"));
-        myServer.addServlet("POST", "/upload", new ConfLoader());
+        ConfLoader confLoader;
+        if (agents.equals("compiled"))
+            confLoader = new ConfLoader(true);
+        else if (agents.matches("[1-9][0-9]*"))
+            confLoader = new ConfLoader(ParallelAgent.newScheduler(Integer.parseInt(agents)));
+        else
+            confLoader = new ConfLoader();
+        myServer.addServlet("POST", "/upload", confLoader);
+        myServer.addServlet("GET", "/metrics", new MetricsServlet(myServer.getMetrics()));
+        myServer.setExpensive("POST", "/upload");
+        myServer.setExpensive("POST", "/publish/batch");
+        myServer.setStreaming("GET", "/events");
+        myServer.setStreaming("GET", "/ws");
 
         myServer.start();
         InetAddress inetAddress = null;
@@ -38,7 +88,7 @@ public class Main {
     }
 
     public static void main(String[] args) {
-        startServer();
+        startServer(args.length > 0 ? args[0] : "pool", args.length > 1 ? args[1] : "");
     }
 
 }
@@ -0,0 +1,113 @@
+package benchmarks;
+
+import graph.Agent;
+import graph.Message;
+import graph.ParallelAgent;
+import graph.Topic;
+import graph.TopicManagerSingleton;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Compares the two ways {@link ParallelAgent} runs agents: a thread of its own per agent, and actors scheduled on a
+ * shared pool only while they have messages. Many agents each subscribe to a topic of their own, and 4 threads
+ * publish to all the topics. Reports the messages handled per second and the peak number of live threads.
+ * <p>
+ * Run with {@code java -cp out benchmarks.ActorBenchmark [agents] [messages per agent] [pool threads]}.
+ */
+public class ActorBenchmark {
+    private static final int PUBLISHERS = 4;
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) throws Exception {
+        int agents = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int perAgent = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int poolThreads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        System.out.printf("%d agents, %d messages each, %d publishing threads%n", agents, perAgent, PUBLISHERS);
+        run("thread per agent", agents, perAgent, null);
+        ForkJoinPool scheduler = ParallelAgent.newScheduler(poolThreads);
+        run("actors on " + poolThreads + " threads", agents, perAgent, scheduler);
+        scheduler.shutdown();
+    }
+
+    private static void run(String model, int agents, int perAgent, ForkJoinPool scheduler) throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        LongAdder handled = new LongAdder();
+        Topic[] topics = new Topic[agents];
+        ParallelAgent[] parallel = new ParallelAgent[agents];
+        for (int i = 0; i < agents; i++) {
+            topics[i] = TopicManagerSingleton.get().getTopic(model + "-" + i);
+            Counter counter = new Counter(handled);
+            parallel[i] = scheduler == null ? new ParallelAgent(counter, 1000) : new ParallelAgent(counter, 1000, scheduler);
+            topics[i].subscribe(parallel[i]);
+        }
+        Message msg = new Message(2);
+        long total = (long) agents * perAgent;
+        for (int round = 0; round < ROUNDS; round++) {
+            handled.reset();
+            long start = System.nanoTime();
+            ExecutorService publishers = Executors.newFixedThreadPool(PUBLISHERS);
+            for (int p = 0; p < PUBLISHERS; p++) {
+                int first = p;
+                publishers.execute(() -> {
+                    for (int k = 0; k < perAgent; k++) {
+                        for (int i = first; i < agents; i += PUBLISHERS) {
+                            topics[i].publish(msg);
+                        }
+                    }
+                });
+            }
+            publishers.shutdown();
+            publishers.awaitTermination(1, TimeUnit.HOURS);
+            while (handled.sum() < total) {
+                Thread.sleep(1);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%-22s round %d: %10.0f msg/s, peak %5d live threads%n",
+                    model, round + 1, total / seconds, threads.getPeakThreadCount());
+        }
+        for (int i = 0; i < agents; i++) {
+            topics[i].unsubscribe(parallel[i]);
+            parallel[i].close();
+        }
+    }
+
+    /**
+     * An agent that does a little arithmetic per message and counts them.
+     */
+    private static class Counter implements Agent {
+        private final LongAdder handled;
+        private double sum;
+
+        Counter(LongAdder handled) {
+            this.handled = handled;
+        }
+
+        @Override
+        public String getName() {
+            return "counter";
+        }
+
+        @Override
+        public void reset() {
+            sum = 0;
+        }
+
+        @Override
+        public void callback(String topic, Message msg) {
+            sum += Math.sqrt(msg.asDouble);
+            handled.increment();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package benchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/**
+ * Times the operations of the benchmarks the way a harness would: warm-up rounds first so the JIT compiled the code,
+ * then measured rounds of which the median is reported, with the bytes the thread allocated per operation.
+ * Results are written to {@link #sink} so the JIT cannot drop the work that produced them.
+ */
+final class Bench {
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 10;
+
+    static volatile long sink;
+
+    /**
+     * A round of a benchmark, which performs the operation the given number of times.
+     */
+    interface Round {
+        void run(int ops) throws Exception;
+    }
+
+    private Bench() {
+    }
+
+    /**
+     * Measures an operation and prints the median time and the allocation per operation.
+     *
+     * @param name  the name printed with the result.
+     * @param ops   the number of operations per round.
+     * @param round runs the operations.
+     * @return the median nanoseconds per operation.
+     */
+    static double measure(String name, int ops, Round round) throws Exception {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            round.run(ops);
+        }
+        double[] nanos = new double[ROUNDS];
+        long allocated = allocatedBytes();
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            round.run(ops);
+            nanos[i] = (double) (System.nanoTime() - start) / ops;
+        }
+        double bytes = (double) (allocatedBytes() - allocated) / ((long) ops * ROUNDS);
+        Arrays.sort(nanos);
+        double median = nanos[ROUNDS / 2];
+        System.out.printf("%-40s %12.1f ns/op %10.1f B/op%n", name, median, bytes);
+        return median;
+    }
+
+    /**
+     * @return the bytes allocated by the current thread so far, or 0 if the JVM does not count them.
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        return 0;
+    }
+}
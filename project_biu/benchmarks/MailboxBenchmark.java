@@ -0,0 +1,104 @@
+package benchmarks;
+
+import graph.BlockingMailbox;
+import graph.Mailbox;
+import graph.Message;
+import graph.RingMailbox;
+import graph.WaitStrategy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures the mailbox of a {@link graph.ParallelAgent} with 1, 4 and 16 threads putting messages into it and one
+ * thread taking them out, as the agent thread does. {@link BlockingMailbox}, which holds the messages in an
+ * {@link java.util.concurrent.ArrayBlockingQueue}, is compared with {@link RingMailbox} waiting with
+ * {@link WaitStrategy#YIELD} and with {@link WaitStrategy#PARK}. Every mailbox holds 1024 messages.
+ * <p>
+ * Run with {@code java -cp out benchmarks.MailboxBenchmark [messages]}. The result is the throughput in million
+ * messages per second and the median and 99th percentile of the time from creating a message to its handling.
+ * Every case is run twice and the second run is reported, the first warms up.
+ */
+public class MailboxBenchmark {
+    private static final int CAPACITY = 1024;
+
+    public static void main(String[] args) throws Exception {
+        int total = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        System.out.printf("%d messages per run%n", total);
+        System.out.printf("%-10s %9s %12s %10s %10s%n", "mailbox", "producers", "M msg/s", "p50 us", "p99 us");
+        for (int producers : new int[]{1, 4, 16}) {
+            for (String kind : new String[]{"blocking", "ring-yield", "ring-park"}) {
+                run(kind, producers, total);
+                Result result = run(kind, producers, total);
+                System.out.printf("%-10s %9d %12.2f %10.1f %10.1f%n", kind, producers,
+                        result.throughput / 1e6, result.p50 / 1e3, result.p99 / 1e3);
+            }
+        }
+    }
+
+    private static Mailbox create(String kind) {
+        if (kind.equals("blocking"))
+            return new BlockingMailbox(CAPACITY);
+        return new RingMailbox(CAPACITY, kind.endsWith("park") ? WaitStrategy.PARK : WaitStrategy.YIELD);
+    }
+
+    /**
+     * Puts total messages into a new mailbox from the given number of threads and takes them out on another.
+     */
+    private static Result run(String kind, int producers, int total) throws InterruptedException {
+        Mailbox mailbox = create(kind);
+        int perProducer = total / producers;
+        int expected = perProducer * producers;
+        long[] latencies = new long[expected];
+        int[] taken = {0};
+        Mailbox.Handler record = (source, topic, msg) -> latencies[taken[0]++] = System.nanoTime() - msg.getNanoTime();
+        Thread consumer = new Thread(() -> {
+            try {
+                while (taken[0] < expected)
+                    mailbox.take(record);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            Thread producer = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < perProducer; i++)
+                        mailbox.put(null, "bench", new Message((double) i));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            producer.start();
+            threads.add(producer);
+        }
+        consumer.start();
+        long begin = System.nanoTime();
+        start.countDown();
+        consumer.join();
+        long elapsed = System.nanoTime() - begin;
+        for (Thread producer : threads)
+            producer.join();
+
+        Arrays.sort(latencies);
+        return new Result(expected * 1e9 / elapsed, latencies[expected / 2], latencies[(int) (expected * 0.99)]);
+    }
+
+    private static class Result {
+        final double throughput;
+        final long p50;
+        final long p99;
+
+        Result(double throughput, long p50, long p99) {
+            this.throughput = throughput;
+            this.p50 = p50;
+            this.p99 = p99;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package benchmarks;
+
+import server.MyHTTPServer;
+import server.RequestParser.RequestInfo;
+import servlets.Servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks that page loads are not turned away by connections that are only kept alive.
+ * Like a browser, it opens 6 keep-alive connections to a server with 5 threads, loads a page over all of them at
+ * once and loads it again a moment later over the connections that are still open, reconnecting those the server
+ * closed. No request may be answered with 503 Service Unavailable.
+ * <p>
+ * Run with {@code java -cp out benchmarks.PageLoadCheck [page loads]}, it exits with status 1 if the check fails.
+ */
+public class PageLoadCheck {
+    private static final int PORT = 8091;
+    private static final int CONNECTIONS = 6;
+    private static final int THREADS = 5;
+    // Longer than a request takes, shorter than the idle timeout of the server
+    private static final int PAUSE_MILLIS = 2500;
+
+    public static void main(String[] args) throws Exception {
+        int loads = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        MyHTTPServer server = new MyHTTPServer(PORT, THREADS);
+        server.addServlet("GET", "/file", new Servlet() {
+            @Override
+            public void handle(RequestInfo ri, OutputStream toClient) throws IOException {
+                toClient.write("HTTP/1.1 200 OK\r\nContent-Length: 4\r\n\r\nfile".getBytes());
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+        server.start();
+        Thread.sleep(500);
+
+        Socket[] sockets = new Socket[CONNECTIONS];
+        AtomicInteger unavailable = new AtomicInteger();
+        AtomicInteger reconnects = new AtomicInteger();
+        AtomicLong slowest = new AtomicLong();
+        for (int load = 0; load < loads; load++) {
+            List<Thread> fetches = new ArrayList<>();
+            for (int c = 0; c < CONNECTIONS; c++) {
+                int connection = c;
+                Thread fetch = new Thread(() -> {
+                    long start = System.nanoTime();
+                    String status = fetch(sockets, connection, reconnects);
+                    slowest.accumulateAndGet(System.nanoTime() - start, Math::max);
+                    if (status == null || !status.contains(" 200 "))
+                        unavailable.incrementAndGet();
+                });
+                fetches.add(fetch);
+                fetch.start();
+            }
+            for (Thread fetch : fetches) {
+                fetch.join();
+            }
+            Thread.sleep(PAUSE_MILLIS);
+        }
+        for (Socket socket : sockets) {
+            if (socket != null)
+                socket.close();
+        }
+        server.close();
+
+        System.out.printf("%d page loads over %d connections to %d threads: %d not answered with 200, "
+                        + "%d reconnects, slowest request %.1f ms%n",
+                loads, CONNECTIONS, THREADS, unavailable.get(), reconnects.get(), slowest.get() / 1e6);
+        System.exit(unavailable.get() == 0 ? 0 : 1);
+    }
+
+    /**
+     * Fetches the file over a connection, reconnecting once if the server closed it, as browsers do.
+     *
+     * @return the status line, or null if the request failed.
+     */
+    private static String fetch(Socket[] sockets, int connection, AtomicInteger reconnects) {
+        for (int attempt = 0; attempt < 2; attempt++) {
+            try {
+                if (attempt > 0)
+                    reconnects.incrementAndGet();
+                if (sockets[connection] == null) {
+                    sockets[connection] = new Socket("localhost", PORT);
+                    sockets[connection].setSoTimeout(10000);
+                }
+                Socket socket = sockets[connection];
+                socket.getOutputStream().write("GET /file HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                        .getBytes(StandardCharsets.US_ASCII));
+                String status = readResponse(socket.getInputStream());
+                if (status != null)
+                    return status;
+            } catch (IOException ignored) {
+                // Closed by the server, reconnect
+            }
+            close(sockets, connection);
+        }
+        return null;
+    }
+
+    /**
+     * Reads one response with a Content-Length.
+     *
+     * @return the status line, or null if the connection was closed first.
+     */
+    private static String readResponse(InputStream in) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) >= 0) {
+            head.write(b);
+            if (head.size() >= 4 && head.toString(StandardCharsets.US_ASCII).endsWith("\r\n\r\n"))
+                break;
+        }
+        if (b < 0)
+            return null;
+        String text = head.toString(StandardCharsets.US_ASCII);
+        int length = 0;
+        for (String line : text.split("\r\n")) {
+            if (line.toLowerCase().startsWith("content-length:"))
+                length = Integer.parseInt(line.substring(15).trim());
+        }
+        if (in.readNBytes(length).length < length)
+            return null;
+        return text.substring(0, text.indexOf("\r\n"));
+    }
+
+    private static void close(Socket[] sockets, int connection) {
+        try {
+            if (sockets[connection] != null)
+                sockets[connection].close();
+        } catch (IOException ignored) {
+        }
+        sockets[connection] = null;
+    }
+}
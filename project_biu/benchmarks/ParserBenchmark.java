@@ -0,0 +1,83 @@
+package benchmarks;
+
+import server.RequestDecoder;
+import server.RequestParser;
+import server.RequestParser.RequestInfo;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compares the byte based {@link RequestDecoder} with the reader based {@link RequestParser#parseRequest} on a
+ * browser-like GET with a query string and a form POST. Both read the URI segments and the parameters, which the
+ * decoder only decodes when they are asked for. The decoder is also fed a request split in two reads, which the
+ * reader based parser cannot resume.
+ * <p>
+ * Run with {@code java -cp out benchmarks.ParserBenchmark}.
+ */
+public class ParserBenchmark {
+    private static final String HEADERS = "Host: localhost:8080\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:128.0) Gecko/20100101 Firefox/128.0\r\n"
+            + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+            + "Accept-Language: en-US,en;q=0.5\r\n"
+            + "Accept-Encoding: gzip, deflate, br\r\n"
+            + "Connection: keep-alive\r\n"
+            + "Referer: http://localhost:8080/app/index.html\r\n";
+
+    public static void main(String[] args) throws Exception {
+        byte[] get = ("GET /publish?topic=A&message=42 HTTP/1.1\r\n" + HEADERS + "\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1);
+        StringBuilder form = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            form.append(i == 0 ? "" : "&").append("field").append(i).append("=value").append(i);
+        }
+        byte[] post = ("POST /publish/batch HTTP/1.1\r\n" + HEADERS
+                + "Content-Type: application/x-www-form-urlencoded\r\n"
+                + "Content-Length: " + form.length() + "\r\n\r\n" + form).getBytes(StandardCharsets.ISO_8859_1);
+
+        int ops = 200_000;
+        double legacy = Bench.measure("RequestParser GET", ops, n -> {
+            for (int i = 0; i < n; i++) {
+                consume(parseLegacy(get));
+            }
+        });
+        double decoder = Bench.measure("RequestDecoder GET", ops, n -> {
+            for (int i = 0; i < n; i++) {
+                consume(new RequestDecoder().decode(ByteBuffer.wrap(get)));
+            }
+        });
+        System.out.printf("GET speedup %.1fx%n", legacy / decoder);
+        legacy = Bench.measure("RequestParser POST", ops, n -> {
+            for (int i = 0; i < n; i++) {
+                consume(parseLegacy(post));
+            }
+        });
+        decoder = Bench.measure("RequestDecoder POST", ops, n -> {
+            for (int i = 0; i < n; i++) {
+                consume(new RequestDecoder().decode(ByteBuffer.wrap(post)));
+            }
+        });
+        System.out.printf("POST speedup %.1fx%n", legacy / decoder);
+        int half = post.length / 2;
+        Bench.measure("RequestDecoder POST in two reads", ops, n -> {
+            for (int i = 0; i < n; i++) {
+                RequestDecoder d = new RequestDecoder();
+                if (d.decode(ByteBuffer.wrap(post, 0, half)) != null)
+                    throw new IllegalStateException("Decoded half a request");
+                consume(d.decode(ByteBuffer.wrap(post, half, post.length - half)));
+            }
+        });
+    }
+
+    private static RequestInfo parseLegacy(byte[] request) throws Exception {
+        return RequestParser.parseRequest(new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(request), StandardCharsets.ISO_8859_1)));
+    }
+
+    private static void consume(RequestInfo ri) {
+        Bench.sink += ri.getUriSegments().length + ri.getParameters().size() + ri.getContent().length;
+    }
+}
@@ -0,0 +1,70 @@
+package benchmarks;
+
+import configs.GenericConfig;
+import graph.EvaluationPlan;
+import graph.Topic;
+import graph.TopicManagerSingleton;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Compares the cost of one update of an input topic when a configuration is created as agents, which call each
+ * other back through their topics, and when it is compiled into an {@link EvaluationPlan}. Two configurations are run:
+ * <ul>
+ *     <li>a chain of 20 IncAgents, where every update passes every agent once either way, and</li>
+ *     <li>a ladder of 10 layers of a PlusAgent and a MulAgent that both read both topics of the layer before, so the
+ *     cascade recomputes the last layer once per path, 2^10 times, while the plan computes every step once.</li>
+ * </ul>
+ * <p>
+ * Run with {@code java -cp out benchmarks.PlanBenchmark}. The result is the time per update of the input topic,
+ * including the publishing of every result.
+ */
+public class PlanBenchmark {
+    private static final int CHAIN_LENGTH = 20;
+    private static final int LADDER_LAYERS = 10;
+
+    public static void main(String[] args) throws Exception {
+        StringBuilder chain = new StringBuilder();
+        for (int i = 0; i < CHAIN_LENGTH; i++) {
+            chain.append("graph.IncAgent\nC").append(i).append("\nC").append(i + 1).append('\n');
+        }
+        StringBuilder ladder = new StringBuilder("graph.IncAgent\nX\nL0\ngraph.DecAgent\nX\nR0\n");
+        for (int i = 0; i < LADDER_LAYERS; i++) {
+            ladder.append("graph.PlusAgent\nL").append(i).append(",R").append(i).append("\nL").append(i + 1).append('\n');
+            ladder.append("graph.MulAgent\nL").append(i).append(",R").append(i).append("\nR").append(i + 1).append('\n');
+        }
+
+        double chainCascade = measure("chain cascade", chain.toString(), "C0", false, 100_000);
+        double chainCompiled = measure("chain compiled", chain.toString(), "C0", true, 100_000);
+        double ladderCascade = measure("ladder cascade", ladder.toString(), "X", false, 200);
+        double ladderCompiled = measure("ladder compiled", ladder.toString(), "X", true, 200);
+        System.out.printf("chain: compiled costs %.2fx the cascade, ladder: %.2fx%n",
+                chainCompiled / chainCascade, ladderCompiled / ladderCascade);
+    }
+
+    /**
+     * Creates the configuration and measures publishing to its input topic.
+     */
+    private static double measure(String name, String conf, String input, boolean compiled, int ops) throws Exception {
+        Path file = Files.createTempFile("plan", ".conf");
+        GenericConfig config = new GenericConfig();
+        try {
+            Files.write(file, conf.getBytes(StandardCharsets.UTF_8));
+            TopicManagerSingleton.get().clear();
+            config.setConfFile(file.toString());
+            config.setCompiled(compiled);
+            config.create();
+            Topic topic = TopicManagerSingleton.get().getTopic(input);
+            return Bench.measure(name, ops, n -> {
+                for (int i = 0; i < n; i++) {
+                    topic.publish(i % 100);
+                }
+            });
+        } finally {
+            config.close();
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package benchmarks;
+
+import server.HTTPServer;
+import server.MyHTTPServer;
+import server.NioHTTPServer;
+import server.RequestParser.RequestInfo;
+import servlets.Servlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares the connection engines on a servlet that blocks, as one waiting on a file or another service would,
+ * with 1000 concurrent clients by default. The pool and nio engines run with the 16 threads {@code Main} gives
+ * them. Every client opens a connection per request, so the engine has to hand out a thread for each of them.
+ * Reports the requests answered with 200 per second and their latency percentiles, then the requests shed with
+ * 503 and the failed ones separately, and the peak number of platform threads of the server, not counting the
+ * client threads.
+ * <p>
+ * Run with {@code java -cp out benchmarks.ServerBenchmark [clients] [requests per client] [blocking ms]}.
+ * The virtual engine is skipped on runtimes without virtual threads, run it on Java 21 or later to compare it.
+ */
+public class ServerBenchmark {
+    private static final int PORT = 8090;
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int blockMillis = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        System.out.printf("%d clients x %d requests, servlet blocks %d ms, Java %d%n",
+                clients, requests, blockMillis, Runtime.version().feature());
+        int port = PORT;
+        for (String engine : new String[]{"pool", "nio", "virtual"}) {
+            HTTPServer server;
+            if (engine.equals("pool"))
+                server = new MyHTTPServer(port, 16);
+            else if (engine.equals("nio"))
+                server = new NioHTTPServer(port, 2, 16);
+            else if (MyHTTPServer.hasVirtualThreads())
+                server = MyHTTPServer.withVirtualThreads(port, 1000);
+            else {
+                System.out.printf("%-8s skipped, virtual threads need Java 21%n", engine);
+                continue;
+            }
+            run(engine, server, port++, clients, requests, blockMillis);
+        }
+    }
+
+    private static void run(String engine, HTTPServer server, int port, int clients, int requests, int blockMillis)
+            throws Exception {
+        server.addServlet("GET", "/block", new Servlet() {
+            @Override
+            public void handle(RequestInfo ri, OutputStream toClient) throws IOException {
+                try {
+                    Thread.sleep(blockMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                toClient.write("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok".getBytes());
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+        server.start();
+        Thread.sleep(500);
+
+        // Samples the threads that are not clients, the peak thread count of the JVM would include clients
+        // that already finished
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        AtomicInteger runningClients = new AtomicInteger();
+        AtomicInteger serverThreads = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(1);
+        Thread sampler = new Thread(() -> {
+            try {
+                do {
+                    serverThreads.accumulateAndGet(threads.getThreadCount() - runningClients.get(), Math::max);
+                } while (!done.await(5, TimeUnit.MILLISECONDS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        sampler.start();
+        Thread.sleep(20);
+        int before = serverThreads.get();
+        AtomicInteger unavailable = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        // The latency of every request answered with 200, -1 for the others
+        long[][] latencies = new long[clients][requests];
+        List<Thread> workers = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int c = 0; c < clients; c++) {
+            int client = c;
+            Thread worker = new Thread(() -> {
+                runningClients.incrementAndGet();
+                for (int r = 0; r < requests; r++) {
+                    long sent = System.nanoTime();
+                    String status = get(port, "/block");
+                    latencies[client][r] = -1;
+                    if (status == null)
+                        failed.incrementAndGet();
+                    else if (status.contains(" 503 "))
+                        unavailable.incrementAndGet();
+                    else if (status.contains(" 200 "))
+                        latencies[client][r] = System.nanoTime() - sent;
+                    else
+                        failed.incrementAndGet();
+                }
+                runningClients.decrementAndGet();
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        done.countDown();
+        sampler.join();
+        server.close();
+
+        long[] ok = Arrays.stream(latencies).flatMapToLong(Arrays::stream).filter(l -> l >= 0).sorted().toArray();
+        System.out.printf("%-8s %6d ok %8.0f ok/s  p50 %7.1f ms  p99 %7.1f ms  |  503 %5d  failed %5d  |  +%d server threads%n",
+                engine, ok.length, ok.length / (elapsed / 1e9),
+                ok.length > 0 ? ok[ok.length / 2] / 1e6 : Double.NaN,
+                ok.length > 0 ? ok[ok.length * 99 / 100] / 1e6 : Double.NaN,
+                unavailable.get(), failed.get(), Math.max(serverThreads.get() - before, 0));
+        Thread.sleep(1500);
+    }
+
+    /**
+     * Sends a GET request on a new connection.
+     *
+     * @return the status line of the response, or null if the request failed.
+     */
+    static String get(int port, String path) {
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setSoTimeout(30000);
+            socket.getOutputStream().write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            InputStream in = socket.getInputStream();
+            byte[] response = in.readAllBytes();
+            String text = new String(response, StandardCharsets.US_ASCII);
+            int end = text.indexOf("\r\n");
+            return end < 0 ? null : text.substring(0, end);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package benchmarks;
+
+import server.HTTPServer;
+import server.MyHTTPServer;
+import server.NioHTTPServer;
+import server.RequestParser.RequestInfo;
+import servlets.Servlet;
+import servlets.TopicStreamer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that open event streams do not take the threads that serve ordinary requests.
+ * For each engine it opens more {@code /events} streams than the server has threads, then sends ordinary
+ * requests, which must all be answered with 200 while the streams stay open.
+ * <p>
+ * Run with {@code java -cp out benchmarks.StreamingCheck [streams] [requests]}, it exits with status 1 if the
+ * check fails.
+ */
+public class StreamingCheck {
+    private static final int PORT = 8092;
+    private static final int THREADS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int streams = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        boolean passed = check("pool", new MyHTTPServer(PORT, THREADS), PORT, streams, requests);
+        passed &= check("nio", new NioHTTPServer(PORT + 1, 1, THREADS), PORT + 1, streams, requests);
+        System.exit(passed ? 0 : 1);
+    }
+
+    private static boolean check(String engine, HTTPServer server, int port, int streams, int requests)
+            throws Exception {
+        server.addServlet("GET", "/events", new TopicStreamer());
+        server.setStreaming("GET", "/events");
+        server.addServlet("GET", "/file", new Servlet() {
+            @Override
+            public void handle(RequestInfo ri, OutputStream toClient) throws IOException {
+                toClient.write("HTTP/1.1 200 OK\r\nContent-Length: 4\r\n\r\nfile".getBytes());
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+        server.start();
+        Thread.sleep(500);
+
+        List<Socket> open = new ArrayList<>();
+        int streaming = 0;
+        for (int i = 0; i < streams; i++) {
+            Socket socket = new Socket("localhost", port);
+            socket.setSoTimeout(2000);
+            socket.getOutputStream().write("GET /events HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                    .getBytes(StandardCharsets.US_ASCII));
+            open.add(socket);
+            if (readStatus(socket.getInputStream()).contains(" 200 "))
+                streaming++;
+        }
+        int answered = 0;
+        long slowest = 0;
+        for (int i = 0; i < requests; i++) {
+            long start = System.nanoTime();
+            String status = ServerBenchmark.get(port, "/file");
+            slowest = Math.max(slowest, System.nanoTime() - start);
+            if (status != null && status.contains(" 200 "))
+                answered++;
+        }
+        for (Socket socket : open) {
+            socket.close();
+        }
+        server.close();
+
+        boolean passed = streaming == streams && answered == requests;
+        System.out.printf("%-5s %d of %d streams open on %d threads, %d of %d requests answered with 200, "
+                        + "slowest %.1f ms: %s%n",
+                engine, streaming, streams, THREADS, answered, requests, slowest / 1e6, passed ? "passed" : "FAILED");
+        return passed;
+    }
+
+    /**
+     * Reads the status line of a response.
+     *
+     * @return the status line, or an empty string if none arrived in time.
+     */
+    private static String readStatus(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        try {
+            int b;
+            while ((b = in.read()) >= 0 && b != '\n') {
+                line.append((char) b);
+            }
+        } catch (SocketTimeoutException e) {
+            return "";
+        }
+        return line.toString();
+    }
+}
@@ -9,11 +9,20 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.List;
 import java.util.*;
+import java.util.concurrent.Executor;
 
 
 public class GenericConfig implements Config {
+    // The size of the queue of a wrapped agent unless configured otherwise
+    public static final int DEFAULT_QUEUE_SIZE = 1000;
+
     String filename;
     Set<Agent> agents;
+    // The executor that runs the agents in actor mode, null to run them on the publishing thread
+    Executor executor;
+    int queueSize = DEFAULT_QUEUE_SIZE;
+    // Whether acyclic configurations are compiled into an evaluation plan
+    boolean compiled;
 
     /**
      * This method creates and initializes the agents based on the configuration file.
@@ -25,12 +34,16 @@ public class GenericConfig implements Config {
      *     <li>Comma-separated list of subscription topics</li>
      *     <li>Comma-separated list of publication topics</li>
      * </ul>
-     * Each set of three lines represents a single agent configuration.
+     * Each set of three lines represents a single agent configuration. The class name may be followed by options
+     * of the agent's queue, like {@code graph.PlusAgent overflow=drop_oldest queue=100}, see
+     * {@link #wrap(TopicManagerSingleton.TopicManager, Agent, String[], String[], String[])}.
      * <p>
      * If the file does not exist or contains invalid data, the method does nothing.
      * <p>
      * After reading the configuration, the method dynamically creates instances of the specified agent classes,
-     * wraps them in {@link ParallelAgent} instances, and subscribes the parallel agents to the specified topics.
+     * which subscribe themselves to the specified topics. If {@link #setExecutor(Executor, int)} was called, each
+     * agent is then wrapped in a {@link ParallelAgent} in actor mode that takes its place on the topics, as is
+     * every agent with queue options.
      */
     @Override
     public void create() {
@@ -47,12 +60,18 @@ public class GenericConfig implements Config {
             e.printStackTrace();
         }
         agents = new HashSet<>();
+        if (compiled && executor == null && compile(linesList))
+            return;
         for (int i = 0; i < linesList.size() / 3; i++) {
-            String agentClass = "graph."+linesList.get(i * 3).split("\\.")[1];
+            // The class may be followed by options of the agent's queue
+            String[] words = linesList.get(i * 3).trim().split("\\s+");
+            String agentClass = "graph."+words[0].split("\\.")[1];
             String[] subs = linesList.get(i * 3 + 1).split(",");
             String[] pubs = linesList.get(i * 3 + 2).split(",");
 
             Agent agent = (Agent) dynamicallyCreateAgentClass(agentClass, subs, pubs);
+            if (agent != null && (executor != null || words.length > 1))
+                agent = wrap(tm, agent, subs, pubs, words);
             agents.add(agent);
         }
     }
@@ -75,12 +94,118 @@ public class GenericConfig implements Config {
      */
     @Override
     public void close() {
+        // Nothing was created if the file could not be read
+        if (agents == null)
+            return;
         for (Agent a : agents) {
-            a.close();
+            if (a != null)
+                a.close();
         }
         agents.clear();
     }
 
+    /**
+     * Compiles the configuration into an {@link EvaluationPlan} whose steps take the place of the agents.
+     *
+     * @return true if the plan was created, false if the configuration has agents with queue options, agents
+     * that have no compiled form or a cycle, then it is created as agents.
+     */
+    private boolean compile(List<String> linesList) {
+        List<String> classNames = new ArrayList<>();
+        List<String[]> subs = new ArrayList<>();
+        List<String[]> pubs = new ArrayList<>();
+        for (int i = 0; i < linesList.size() / 3; i++) {
+            String[] words = linesList.get(i * 3).trim().split("\\s+");
+            if (words.length > 1)
+                return false;
+            classNames.add(words[0]);
+            subs.add(linesList.get(i * 3 + 1).split(","));
+            pubs.add(linesList.get(i * 3 + 2).split(","));
+        }
+        EvaluationPlan plan = EvaluationPlan.compile(classNames, subs, pubs);
+        if (plan == null)
+            return false;
+        agents.addAll(plan.getAgents());
+        return true;
+    }
+
+    /**
+     * Evaluates acyclic configurations as an {@link EvaluationPlan} instead of a cascade of agent callbacks.
+     * Configurations that cannot be compiled, and every configuration run in actor mode, are still created as agents.
+     *
+     * @param compiled Whether to compile configurations.
+     */
+    public void setCompiled(boolean compiled) {
+        this.compiled = compiled;
+    }
+
+    /**
+     * Runs the agents created by {@link #create()} in actor mode on a shared executor, instead of on the thread
+     * that publishes to their topics.
+     *
+     * @param executor  The executor shared by the agents, see {@link ParallelAgent#newScheduler(int)}.
+     * @param queueSize The size of the queue of each agent.
+     */
+    public void setExecutor(Executor executor, int queueSize) {
+        this.executor = executor;
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * Wraps an agent in a {@link ParallelAgent} and replaces it on the topics it subscribed and published to.
+     * The words after the class name configure its queue:
+     * <ul>
+     *     <li>{@code queue=<size>} the size of the queue</li>
+     *     <li>{@code overflow=block|drop_newest|drop_oldest|conflate} what to do when the queue is full, see {@link OverflowPolicy}</li>
+     *     <li>{@code timeout=<ms>} how long a publisher waits for room with {@code overflow=block}</li>
+     * </ul>
+     * Without an executor the agent gets a thread of its own.
+     *
+     * @return The wrapping agent.
+     */
+    private Agent wrap(TopicManagerSingleton.TopicManager tm, Agent agent, String[] subs, String[] pubs, String[] words) {
+        int size = queueSize;
+        OverflowPolicy policy = OverflowPolicy.BLOCK;
+        long timeout = ParallelAgent.DEFAULT_TIMEOUT_MILLIS;
+        for (int i = 1; i < words.length; i++) {
+            int eq = words[i].indexOf('=');
+            String key = eq == -1 ? words[i] : words[i].substring(0, eq);
+            String value = words[i].substring(eq + 1);
+            try {
+                switch (key) {
+                    case "queue":
+                        int parsed = Integer.parseInt(value);
+                        if (parsed < 1)
+                            throw new IllegalArgumentException();
+                        size = parsed;
+                        break;
+                    case "overflow":
+                        policy = OverflowPolicy.parse(value);
+                        break;
+                    case "timeout":
+                        timeout = Long.parseLong(value);
+                        break;
+                    default:
+                        System.out.println("Unknown option: " + words[i]);
+                }
+            } catch (IllegalArgumentException e) {
+                System.out.println("Invalid option: " + words[i]);
+            }
+        }
+        ParallelAgent parallel = new ParallelAgent(agent, size, policy, timeout, executor);
+        for (String sub : subs) {
+            Topic topic = tm.getTopic(sub);
+            topic.unsubscribe(agent);
+            topic.subscribe(parallel);
+        }
+        for (String pub : pubs) {
+            Topic topic = tm.getTopic(pub);
+            topic.removePublisher(agent);
+            topic.addPublisher(parallel);
+        }
+        return parallel;
+    }
+
     /**
      * Sets the configuration file path for the {@link GenericConfig} instance.
      *
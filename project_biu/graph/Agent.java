@@ -4,5 +4,17 @@ public interface Agent {
     String getName();
     void reset();
     void callback(String topic, Message msg);
+
+    /**
+     * Called when a message is published to a subscribed topic. Agents that keep the Topic objects they
+     * subscribed to can route the message by reference instead of comparing names.
+     *
+     * @param topic The topic on which the message was published.
+     * @param msg   The published message.
+     */
+    default void callback(Topic topic, Message msg) {
+        callback(topic.name, msg);
+    }
+
     void close();
 }
@@ -0,0 +1,250 @@
+package graph;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Evaluates an acyclic configuration over columns of inputs, for replaying recorded rows without publishing
+ * them one message at a time.
+ * <p>
+ * Every input topic is given as a column of numbers, one per row, and each agent's operation is applied to
+ * whole columns in topological order, producing a column for every topic an agent publishes to. Row {@code i}
+ * of an output is computed from row {@code i} of the inputs alone. A row that is not a number has no value:
+ * it stays NaN through every operation, and a zero divisor or the square root of a negative number also
+ * yields NaN, where the agents would publish nothing.
+ * <p>
+ * The rows are split into chunks that are evaluated in parallel on a fork/join pool. Within a chunk every
+ * operation is a plain loop over arrays, which the JIT compiles to vector instructions where the operation
+ * allows it.
+ */
+public class BatchEvaluator {
+    // Rows evaluated by one task, so the columns of a chunk stay in the cache from one operation to the next
+    private static final int CHUNK = 4096;
+
+    private final CompiledSteps steps;
+    // Whether a step publishes to the slot, otherwise it is an input
+    private final boolean[] computed;
+
+    private BatchEvaluator(CompiledSteps steps) {
+        this.steps = steps;
+        this.computed = new boolean[steps.slotNames.length];
+        for (int out : steps.outputs) {
+            computed[out] = true;
+        }
+    }
+
+    /**
+     * Compiles the agents of a configuration, given as the three lines of each agent split into the class name,
+     * the subscriptions and the publications.
+     *
+     * @param classNames The class of each agent, such as {@code graph.PlusAgent}.
+     * @param subs       The topics each agent subscribes to.
+     * @param pubs       The topics each agent publishes to.
+     * @return The evaluator, or null if an agent has no compiled form or the graph has a cycle.
+     */
+    public static BatchEvaluator compile(List<String> classNames, List<String[]> subs, List<String[]> pubs) {
+        CompiledSteps compiled = CompiledSteps.compile(classNames, subs, pubs);
+        return compiled == null ? null : new BatchEvaluator(compiled);
+    }
+
+    /**
+     * Compiles the lines of a configuration file, in the format read by {@link configs.GenericConfig}.
+     * Options of the agents' queues are ignored.
+     *
+     * @param lines The lines of the file.
+     * @return The evaluator, or null if the lines are not a configuration, an agent has no compiled form or the
+     * graph has a cycle.
+     */
+    public static BatchEvaluator compile(List<String> lines) {
+        if (lines.size() % 3 != 0)
+            return null;
+        List<String> classNames = new ArrayList<>();
+        List<String[]> subs = new ArrayList<>();
+        List<String[]> pubs = new ArrayList<>();
+        for (int i = 0; i < lines.size() / 3; i++) {
+            classNames.add(lines.get(i * 3).trim().split("\\s+")[0]);
+            subs.add(lines.get(i * 3 + 1).split(","));
+            pubs.add(lines.get(i * 3 + 2).split(","));
+        }
+        return compile(classNames, subs, pubs);
+    }
+
+    /**
+     * @return The topics that need a column, those no agent publishes to.
+     */
+    public Set<String> getInputs() {
+        Set<String> inputs = new LinkedHashSet<>();
+        for (int slot = 0; slot < computed.length; slot++) {
+            if (!computed[slot])
+                inputs.add(steps.slotNames[slot]);
+        }
+        return Collections.unmodifiableSet(inputs);
+    }
+
+    /**
+     * Evaluates the configuration on the common fork/join pool.
+     *
+     * @see #evaluate(Map, ForkJoinPool)
+     */
+    public Map<String, double[]> evaluate(Map<String, double[]> inputs) {
+        return evaluate(inputs, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Evaluates the configuration over columns of inputs.
+     *
+     * @param inputs The column of every topic of {@link #getInputs()}, all of the same length. They are only read.
+     *               Columns of other topics are ignored.
+     * @param pool   The pool that evaluates the chunks of rows.
+     * @return The column of every topic an agent publishes to, in the order the configuration names them.
+     * @throws IllegalArgumentException if an input column is missing or the columns differ in length.
+     */
+    public Map<String, double[]> evaluate(Map<String, double[]> inputs, ForkJoinPool pool) {
+        int rows = -1;
+        double[][] columns = new double[computed.length][];
+        for (int slot = 0; slot < computed.length; slot++) {
+            if (computed[slot])
+                continue;
+            double[] column = inputs.get(steps.slotNames[slot]);
+            if (column == null)
+                throw new IllegalArgumentException("No column for input topic " + steps.slotNames[slot]);
+            if (rows != -1 && column.length != rows)
+                throw new IllegalArgumentException("Columns differ in length");
+            rows = column.length;
+            columns[slot] = column;
+        }
+        rows = Math.max(rows, 0);
+        Map<String, double[]> outputs = new LinkedHashMap<>();
+        for (int slot = 0; slot < computed.length; slot++) {
+            if (computed[slot]) {
+                columns[slot] = new double[rows];
+                outputs.put(steps.slotNames[slot], columns[slot]);
+            }
+        }
+        pool.invoke(new Chunk(columns, 0, rows));
+        return outputs;
+    }
+
+    /**
+     * Evaluates a range of rows, split in halves until it is small enough to evaluate directly.
+     */
+    private class Chunk extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final double[][] columns;
+        private final int from;
+        private final int to;
+
+        Chunk(double[][] columns, int from, int to) {
+            this.columns = columns;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= CHUNK) {
+                evaluate(columns, from, to);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new Chunk(columns, from, middle), new Chunk(columns, middle, to));
+        }
+    }
+
+    /**
+     * Applies every step to the rows from {@code from} to {@code to}, in topological order.
+     */
+    private void evaluate(double[][] columns, int from, int to) {
+        for (int s = 0; s < steps.operations.length; s++) {
+            double[] x = columns[steps.firstInputs[s]];
+            double[] y = steps.secondInputs[s] != -1 ? columns[steps.secondInputs[s]] : null;
+            double[] out = columns[steps.outputs[s]];
+            switch (steps.operations[s]) {
+                case CompiledSteps.PLUS: plus(x, y, out, from, to); break;
+                case CompiledSteps.MINUS: minus(x, y, out, from, to); break;
+                case CompiledSteps.MUL: mul(x, y, out, from, to); break;
+                case CompiledSteps.DIV: div(x, y, out, from, to); break;
+                case CompiledSteps.MOD: mod(x, y, out, from, to); break;
+                case CompiledSteps.POW: pow(x, y, out, from, to); break;
+                case CompiledSteps.INC: add(x, 1, out, from, to); break;
+                case CompiledSteps.DEC: add(x, -1, out, from, to); break;
+                default: sqrt(x, out, from, to); break;
+            }
+        }
+    }
+
+    // The loops are kept free of branches and calls, so they can be vectorized
+
+    private static void plus(double[] x, double[] y, double[] out, int from, int to) {
+        for (int i = from; i < to; i++) {
+            out[i] = x[i] + y[i];
+        }
+    }
+
+    private static void minus(double[] x, double[] y, double[] out, int from, int to) {
+        for (int i = from; i < to; i++) {
+            out[i] = x[i] - y[i];
+        }
+    }
+
+    private static void mul(double[] x, double[] y, double[] out, int from, int to) {
+        for (int i = from; i < to; i++) {
+            out[i] = x[i] * y[i];
+        }
+    }
+
+    private static void div(double[] x, double[] y, double[] out, int from, int to) {
+        for (int i = from; i < to; i++) {
+            out[i] = x[i] / y[i];
+        }
+        noZeroDivisor(y, out, from, to);
+    }
+
+    private static void mod(double[] x, double[] y, double[] out, int from, int to) {
+        for (int i = from; i < to; i++) {
+            out[i] = x[i] % y[i];
+        }
+        noZeroDivisor(y, out, from, to);
+    }
+
+    /**
+     * Replaces the results of a zero divisor with NaN, in a second loop so the division loop stays vectorizable.
+     */
+    private static void noZeroDivisor(double[] y, double[] out, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (y[i] == 0)
+                out[i] = Double.NaN;
+        }
+    }
+
+    private static void pow(double[] x, double[] y, double[] out, int from, int to) {
+        for (int i = from; i < to; i++) {
+            out[i] = Math.pow(x[i], y[i]);
+        }
+        // Math.pow(NaN, 0) is 1, a row without a value must not get one
+        for (int i = from; i < to; i++) {
+            if (Double.isNaN(x[i]) || Double.isNaN(y[i]))
+                out[i] = Double.NaN;
+        }
+    }
+
+    private static void add(double[] x, double value, double[] out, int from, int to) {
+        for (int i = from; i < to; i++) {
+            out[i] = x[i] + value;
+        }
+    }
+
+    private static void sqrt(double[] x, double[] out, int from, int to) {
+        for (int i = from; i < to; i++) {
+            out[i] = Math.sqrt(x[i]);
+        }
+    }
+}
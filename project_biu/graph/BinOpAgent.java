@@ -1,17 +1,22 @@
 package graph;
 
 import java.util.function.BinaryOperator;
+import java.util.function.DoubleBinaryOperator;
 
 public class BinOpAgent implements Agent {
     String name;
     String firstTopic;
     String secondTopic;
     String outputTopic;
+    // The topics resolved once, so messages are routed and published without looking up names
+    Topic first;
+    Topic second;
+    Topic output;
     double firstMessage;
     double secondMessage;
     boolean firstReceived;
     boolean secondReceived;
-    BinaryOperator<Double> binOp;
+    DoubleBinaryOperator binOp;
 
     /**
      * Constructs a new instance of BinOpAgent. This agent subscribes to two input topics, performs a binary operation on the received
@@ -24,15 +29,52 @@ public class BinOpAgent implements Agent {
      * @param binOp Function: The binary operation to be performed on the received messages.
      */
     public BinOpAgent(String name, String first, String second, String output, BinaryOperator<Double> binOp) {
+        this(name, first, second, output, (DoubleBinaryOperator) binOp::apply);
+    }
+
+    /**
+     * Constructs a new instance of BinOpAgent with an operation on primitive doubles, which computes
+     * without boxing the operands.
+     *
+     * @param name The name of the agent.
+     * @param first The name of the first input topic.
+     * @param second The name of the second input topic.
+     * @param output The name of the output topic.
+     * @param binOp Function: The binary operation to be performed on the received messages.
+     */
+    public BinOpAgent(String name, String first, String second, String output, DoubleBinaryOperator binOp) {
         this.name = name;
         this.firstTopic = first;
         this.secondTopic = second;
         this.outputTopic = output;
         this.binOp = binOp;
 
-        TopicManagerSingleton.get().getTopic(first).subscribe(this);
-        TopicManagerSingleton.get().getTopic(second).subscribe(this);
-        TopicManagerSingleton.get().getTopic(output).addPublisher(this);
+        this.first = TopicManagerSingleton.get().getTopic(firstTopic);
+        this.second = TopicManagerSingleton.get().getTopic(secondTopic);
+        this.output = TopicManagerSingleton.get().getTopic(outputTopic);
+        this.first.subscribe(this);
+        this.second.subscribe(this);
+        this.output.addPublisher(this);
+    }
+
+    /**
+     * Constructs an operator agent from the subscriptions and publications of a configuration, the first two
+     * subscriptions are its operands and the first publication its output.
+     *
+     * @param name The name of the agent.
+     * @param subs The topics to subscribe to, at least 2.
+     * @param pubs The topics to publish to, at least one.
+     * @param binOp Function: The binary operation to be performed on the received messages.
+     * @throws IllegalArgumentException If the conditions for subs and pubs are not met.
+     */
+    protected BinOpAgent(String name, String[] subs, String[] pubs, DoubleBinaryOperator binOp) {
+        this(name, operands(subs, pubs)[0], subs[1], pubs[0], binOp);
+    }
+
+    private static String[] operands(String[] subs, String[] pubs) {
+        if (subs == null || pubs == null || subs.length < 2 || pubs.length < 1)
+            throw new IllegalArgumentException("subs must have at least 2 elements and pubs at least one");
+        return subs;
     }
 
 
@@ -54,21 +96,46 @@ public class BinOpAgent implements Agent {
 
     @Override
     public void callback(String topic, Message msg) {
+        receive(topic.equals(firstTopic), topic.equals(secondTopic), msg);
+    }
+
+    /**
+     * Routes the message by comparing the topic with the subscribed topics by reference.
+     *
+     * @param topic The topic on which the message was received.
+     * @param msg   The received message.
+     */
+    @Override
+    public void callback(Topic topic, Message msg) {
+        receive(topic == first, topic == second, msg);
+    }
+
+    private void receive(boolean isFirst, boolean isSecond, Message msg) {
         if (Double.isNaN(msg.asDouble))
             return;
-        if (topic.equals(firstTopic)) {
+        if (isFirst) {
             firstReceived = true;
             firstMessage = msg.asDouble;
-        } else if (topic.equals(secondTopic)) {
+        } else if (isSecond) {
             secondReceived = true;
             secondMessage = msg.asDouble;
-        }
-        else return;
+        } else return;
         // Publish only if two messages received
-        if (!(firstReceived && secondReceived))
+        if (!(firstReceived && secondReceived) || !isDefined(firstMessage, secondMessage))
             return;
-        double out = binOp.apply(firstMessage, secondMessage);
-        TopicManagerSingleton.get().getTopic(outputTopic).publish(new Message(out));
+        double out = binOp.applyAsDouble(firstMessage, secondMessage);
+        output.publish(out);
+    }
+
+    /**
+     * Checks whether the operation has a result for the operands, nothing is published for those it has not.
+     *
+     * @param first  The latest number of the first topic.
+     * @param second The latest number of the second topic.
+     * @return true for every pair of operands, unless overridden.
+     */
+    protected boolean isDefined(double first, double second) {
+        return true;
     }
 
     @Override
@@ -0,0 +1,70 @@
+package graph;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A mailbox backed by an {@link ArrayBlockingQueue}. Producers and the consumer share the lock of the queue, and
+ * every message is wrapped in a {@link ParallelAgent.MessageQueued}, but a waiting thread sleeps until it is
+ * signalled instead of polling. Any thread may evict messages, so it suits {@link OverflowPolicy#DROP_OLDEST}.
+ */
+public class BlockingMailbox implements Mailbox {
+    private final BlockingQueue<ParallelAgent.MessageQueued> queue;
+    // The messages drained at once, only used by the consumer
+    private final List<ParallelAgent.MessageQueued> batch = new ArrayList<>();
+
+    /**
+     * @param capacity The most messages the mailbox holds.
+     */
+    public BlockingMailbox(int capacity) {
+        queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    @Override
+    public boolean offer(Topic source, String topic, Message msg) {
+        return queue.offer(new ParallelAgent.MessageQueued(source, topic, msg));
+    }
+
+    @Override
+    public void put(Topic source, String topic, Message msg) throws InterruptedException {
+        queue.put(new ParallelAgent.MessageQueued(source, topic, msg));
+    }
+
+    @Override
+    public boolean offer(Topic source, String topic, Message msg, long timeout) throws InterruptedException {
+        return queue.offer(new ParallelAgent.MessageQueued(source, topic, msg), timeout, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public boolean evict() {
+        return queue.poll() != null;
+    }
+
+    @Override
+    public int drain(Handler handler, int max) {
+        // Takes the lock once for the whole batch, not once per message
+        int n = queue.drainTo(batch, max);
+        try {
+            for (ParallelAgent.MessageQueued m : batch) {
+                handler.handle(m.source, m.topic, m.msg);
+            }
+        } finally {
+            batch.clear();
+        }
+        return n;
+    }
+
+    @Override
+    public void take(Handler handler) throws InterruptedException {
+        ParallelAgent.MessageQueued m = queue.take();
+        handler.handle(m.source, m.topic, m.msg);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+}
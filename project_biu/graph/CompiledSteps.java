@@ -0,0 +1,168 @@
+package graph;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The agents of an acyclic configuration as arithmetic steps in topological order, each reading one or two
+ * slots and writing one. Slots are numbered topics, in the order the configuration first names them.
+ * The steps are evaluated message by message by an {@link EvaluationPlan} and column by column by a
+ * {@link BatchEvaluator}.
+ */
+final class CompiledSteps {
+    static final int PLUS = 0;
+    static final int MINUS = 1;
+    static final int MUL = 2;
+    static final int DIV = 3;
+    static final int MOD = 4;
+    static final int POW = 5;
+    static final int INC = 6;
+    static final int DEC = 7;
+    static final int SQRT = 8;
+
+    private static final Map<String, Integer> OPERATIONS = new HashMap<>();
+
+    static {
+        OPERATIONS.put("PlusAgent", PLUS);
+        OPERATIONS.put("MinusAgent", MINUS);
+        OPERATIONS.put("MulAgent", MUL);
+        OPERATIONS.put("DivAgent", DIV);
+        OPERATIONS.put("ModAgent", MOD);
+        OPERATIONS.put("PowAgent", POW);
+        OPERATIONS.put("IncAgent", INC);
+        OPERATIONS.put("DecAgent", DEC);
+        OPERATIONS.put("SqrtAgent", SQRT);
+    }
+
+    // The topic of each slot
+    final String[] slotNames;
+    // The steps in topological order, the second input is -1 for unary operations
+    final int[] operations;
+    final int[] firstInputs;
+    final int[] secondInputs;
+    final int[] outputs;
+    // The class of the agent each step stands for
+    final String[] names;
+
+    private CompiledSteps(String[] slotNames, int[] operations, int[] firstInputs, int[] secondInputs, int[] outputs, String[] names) {
+        this.slotNames = slotNames;
+        this.operations = operations;
+        this.firstInputs = firstInputs;
+        this.secondInputs = secondInputs;
+        this.outputs = outputs;
+        this.names = names;
+    }
+
+    /**
+     * Compiles the agents of a configuration, given as the three lines of each agent split into the class name,
+     * the subscriptions and the publications.
+     *
+     * @param classNames The class of each agent, such as {@code graph.PlusAgent}.
+     * @param subs       The topics each agent subscribes to.
+     * @param pubs       The topics each agent publishes to.
+     * @return The steps, or null if an agent has no compiled form or the graph has a cycle.
+     */
+    static CompiledSteps compile(List<String> classNames, List<String[]> subs, List<String[]> pubs) {
+        int n = classNames.size();
+        int[] operations = new int[n];
+        int[] firstInputs = new int[n];
+        int[] secondInputs = new int[n];
+        int[] outputs = new int[n];
+        Map<String, Integer> slots = new LinkedHashMap<>();
+
+        for (int i = 0; i < n; i++) {
+            String className = classNames.get(i);
+            Integer operation = OPERATIONS.get(className.substring(className.lastIndexOf('.') + 1));
+            if (operation == null)
+                return null;
+            boolean binary = operation < INC;
+            String[] in = subs.get(i);
+            String[] out = pubs.get(i);
+            if (out.length < 1 || (binary ? in.length < 2 : in.length != 1 || out.length != 1))
+                return null;
+            // An agent reading one topic twice only ever receives its first input, it has no compiled form
+            if (binary && in[0].equals(in[1]))
+                return null;
+            operations[i] = operation;
+            firstInputs[i] = slot(slots, in[0]);
+            secondInputs[i] = binary ? slot(slots, in[1]) : -1;
+            outputs[i] = slot(slots, out[0]);
+        }
+
+        int[] order = topologicalOrder(firstInputs, secondInputs, outputs, slots.size());
+        if (order == null)
+            return null;
+
+        int[] sortedOperations = new int[n];
+        int[] sortedFirst = new int[n];
+        int[] sortedSecond = new int[n];
+        int[] sortedOutputs = new int[n];
+        String[] names = new String[n];
+        for (int s = 0; s < n; s++) {
+            int i = order[s];
+            sortedOperations[s] = operations[i];
+            sortedFirst[s] = firstInputs[i];
+            sortedSecond[s] = secondInputs[i];
+            sortedOutputs[s] = outputs[i];
+            names[s] = classNames.get(i);
+        }
+        return new CompiledSteps(slots.keySet().toArray(new String[0]), sortedOperations, sortedFirst, sortedSecond,
+                sortedOutputs, names);
+    }
+
+    private static int slot(Map<String, Integer> slots, String topic) {
+        return slots.computeIfAbsent(topic, t -> slots.size());
+    }
+
+    /**
+     * Orders the steps so that every step comes after the steps publishing to its inputs.
+     *
+     * @return The indices of the steps in order, or null if the steps form a cycle.
+     */
+    private static int[] topologicalOrder(int[] firstInputs, int[] secondInputs, int[] outputs, int slots) {
+        int n = outputs.length;
+        // The steps publishing to each slot
+        List<List<Integer>> writers = new ArrayList<>();
+        for (int slot = 0; slot < slots; slot++) {
+            writers.add(new ArrayList<>());
+        }
+        for (int i = 0; i < n; i++) {
+            writers.get(outputs[i]).add(i);
+        }
+        // The steps each step waits for, and the steps waiting for it
+        int[] waiting = new int[n];
+        List<List<Integer>> next = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            next.add(new ArrayList<>());
+        }
+        for (int i = 0; i < n; i++) {
+            for (int input : secondInputs[i] == -1 || secondInputs[i] == firstInputs[i]
+                    ? new int[]{firstInputs[i]} : new int[]{firstInputs[i], secondInputs[i]}) {
+                for (int writer : writers.get(input)) {
+                    next.get(writer).add(i);
+                    waiting[i]++;
+                }
+            }
+        }
+        ArrayDeque<Integer> ready = new ArrayDeque<>();
+        for (int i = 0; i < n; i++) {
+            if (waiting[i] == 0)
+                ready.add(i);
+        }
+        int[] order = new int[n];
+        int count = 0;
+        while (!ready.isEmpty()) {
+            int i = ready.poll();
+            order[count++] = i;
+            for (int following : next.get(i)) {
+                if (--waiting[following] == 0)
+                    ready.add(following);
+            }
+        }
+        return count == n ? order : null;
+    }
+}
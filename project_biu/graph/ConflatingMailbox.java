@@ -0,0 +1,119 @@
+package graph;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A mailbox that keeps only the newest message of every topic, for agents that only compute with the latest
+ * value of their inputs, like the arithmetic agents.
+ * <p>
+ * A message replaces the one still waiting for its topic, so the mailbox never holds more messages than the
+ * agent has topics and never makes a producer wait. An agent that fell behind catches up in one message per
+ * topic however many updates it missed. Topics are handed to the consumer in the order their waiting message
+ * arrived, and a topic only enters that order when it had no message waiting, so a steady stream of updates
+ * to one topic does not allocate anything.
+ */
+public class ConflatingMailbox implements Mailbox {
+    private final ConcurrentHashMap<String, Slot> slots = new ConcurrentHashMap<>();
+    // The slots that hold a message, each at most once
+    private final ConcurrentLinkedQueue<Slot> ready = new ConcurrentLinkedQueue<>();
+    private final LongAdder conflated = new LongAdder();
+    private final WaitStrategy waitStrategy;
+
+    /**
+     * The newest message of a topic that was not taken yet.
+     */
+    private static class Slot extends AtomicReference<Message> {
+        private static final long serialVersionUID = 1L;
+
+        final Topic source;
+        final String topic;
+
+        Slot(Topic source, String topic) {
+            this.source = source;
+            this.topic = topic;
+        }
+    }
+
+    /**
+     * @param waitStrategy How the consumer waits while the mailbox is empty.
+     */
+    public ConflatingMailbox(WaitStrategy waitStrategy) {
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Adds a message, replacing the message of the same topic that is still waiting. There is always room.
+     *
+     * @return true.
+     */
+    @Override
+    public boolean offer(Topic source, String topic, Message msg) {
+        Slot slot = slots.get(topic);
+        if (slot == null)
+            slot = slots.computeIfAbsent(topic, t -> new Slot(source, t));
+        if (slot.getAndSet(msg) == null)
+            ready.add(slot);
+        else
+            conflated.increment();
+        return true;
+    }
+
+    @Override
+    public void put(Topic source, String topic, Message msg) {
+        offer(source, topic, msg);
+    }
+
+    @Override
+    public boolean offer(Topic source, String topic, Message msg, long timeout) {
+        return offer(source, topic, msg);
+    }
+
+    /**
+     * The mailbox is never full, waiting messages are only replaced.
+     *
+     * @return false.
+     */
+    @Override
+    public boolean evict() {
+        return false;
+    }
+
+    @Override
+    public int drain(Handler handler, int max) {
+        int n = 0;
+        Slot slot;
+        while (n < max && (slot = ready.poll()) != null) {
+            // A message published from here on queues the slot again
+            Message msg = slot.getAndSet(null);
+            if (msg != null) {
+                n++;
+                handler.handle(slot.source, slot.topic, msg);
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public void take(Handler handler) throws InterruptedException {
+        for (int attempt = 0; drain(handler, 1) == 0; attempt++) {
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            waitStrategy.idle(attempt);
+        }
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return ready.isEmpty();
+    }
+
+    /**
+     * @return The number of messages that were replaced by a newer one before the agent took them.
+     */
+    public long getConflated() {
+        return conflated.sum();
+    }
+}
@@ -4,6 +4,8 @@ public class DecAgent implements Agent {
     String name;
     String inputTopic;
     String outputTopic;
+    // The output topic resolved once, so results are published without looking up its name
+    Topic output;
     double message;
 
     /**
@@ -24,8 +26,9 @@ public class DecAgent implements Agent {
         this.name = name;
         this.inputTopic = subs[0];
         this.outputTopic = pubs[0];
+        this.output = TopicManagerSingleton.get().getTopic(outputTopic);
         TopicManagerSingleton.get().getTopic(inputTopic).subscribe(this);
-        TopicManagerSingleton.get().getTopic(outputTopic).addPublisher(this);
+        this.output.addPublisher(this);
     }
 
     public DecAgent(String name, String sub, String pub) {
@@ -55,7 +58,7 @@ public class DecAgent implements Agent {
             return;
         }
         message = msg.asDouble;
-        TopicManagerSingleton.get().getTopic(outputTopic).publish(new Message(message - 1));
+        output.publish(message - 1);
     }
 
     @Override
@@ -0,0 +1,260 @@
+package graph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An acyclic configuration compiled into steps in topological order, evaluated over arrays of doubles indexed
+ * by topic instead of a cascade of agent callbacks.
+ * <p>
+ * A message published to a topic the plan reads stores its number in the slot of the topic and marks the steps
+ * that read it. One pass over the steps then recomputes the marked ones, each marking the steps that read its
+ * output, so only the part of the graph downstream of the change is evaluated, and every step at most once even
+ * when several paths lead to it. The results are published to their topics after the pass, so the topics, the
+ * pages and the listeners see the same values as with agents.
+ * <p>
+ * The plan takes the place of the agents on the topics with one {@link Agent} per step, which has the name of
+ * the agent it replaces, so the graph of the configuration looks the same. Like the agents, steps ignore
+ * messages that are not numbers, binary steps compute once both inputs received a number, division and modulo
+ * skip a zero divisor and the square root skips negative numbers. Unlike the cascade, a step never computes
+ * from a new value of one input and a stale value of another, so where a step skips a result the value left
+ * on its topic may differ from the one the agents would have left.
+ */
+public class EvaluationPlan {
+    // The topics by slot, and the last number received by each
+    private final Topic[] topics;
+    private final double[] values;
+    private final boolean[] present;
+    // The last message handled per slot, a message reaches the plan once for every step reading its topic
+    private final Message[] handled;
+    // The steps reading each slot, in topological order
+    private final int[][] readers;
+
+    // The steps in topological order, the second input is -1 for unary operations
+    private final int[] operations;
+    private final int[] firstInputs;
+    private final int[] secondInputs;
+    private final int[] outputs;
+    private final Step[] steps;
+
+    // The state of a pass
+    private final boolean[] dirty;
+    private final int[] results;
+    private final double[] resultValues;
+    // The thread publishing the results of a pass, which then reach the steps again
+    private volatile Thread publishing;
+
+    private EvaluationPlan(List<Topic> topics, int[] operations, int[] firstInputs, int[] secondInputs, int[] outputs, String[] names) {
+        int slots = topics.size();
+        int n = operations.length;
+        this.topics = topics.toArray(new Topic[0]);
+        this.values = new double[slots];
+        this.present = new boolean[slots];
+        this.handled = new Message[slots];
+        this.operations = operations;
+        this.firstInputs = firstInputs;
+        this.secondInputs = secondInputs;
+        this.outputs = outputs;
+        this.dirty = new boolean[n];
+        this.results = new int[n];
+        this.resultValues = new double[n];
+
+        int[] readCounts = new int[slots];
+        for (int s = 0; s < n; s++) {
+            readCounts[firstInputs[s]]++;
+            if (secondInputs[s] != -1 && secondInputs[s] != firstInputs[s])
+                readCounts[secondInputs[s]]++;
+        }
+        readers = new int[slots][];
+        for (int slot = 0; slot < slots; slot++) {
+            readers[slot] = new int[readCounts[slot]];
+            readCounts[slot] = 0;
+        }
+        for (int s = 0; s < n; s++) {
+            readers[firstInputs[s]][readCounts[firstInputs[s]]++] = s;
+            if (secondInputs[s] != -1 && secondInputs[s] != firstInputs[s])
+                readers[secondInputs[s]][readCounts[secondInputs[s]]++] = s;
+        }
+
+        steps = new Step[n];
+        for (int s = 0; s < n; s++) {
+            steps[s] = new Step(names[s], s);
+        }
+    }
+
+    /**
+     * Compiles the agents of a configuration, given as the three lines of each agent split into the class name,
+     * the subscriptions and the publications. The steps are subscribed to the topics in place of the agents.
+     *
+     * @param classNames The class of each agent, such as {@code graph.PlusAgent}.
+     * @param subs       The topics each agent subscribes to.
+     * @param pubs       The topics each agent publishes to.
+     * @return The plan, or null if an agent has no compiled form or the graph has a cycle, then nothing was subscribed.
+     */
+    public static EvaluationPlan compile(List<String> classNames, List<String[]> subs, List<String[]> pubs) {
+        CompiledSteps compiled = CompiledSteps.compile(classNames, subs, pubs);
+        if (compiled == null)
+            return null;
+        TopicManagerSingleton.TopicManager tm = TopicManagerSingleton.get();
+        List<Topic> topics = new ArrayList<>();
+        for (String name : compiled.slotNames) {
+            topics.add(tm.getTopic(name));
+        }
+        EvaluationPlan plan = new EvaluationPlan(topics, compiled.operations, compiled.firstInputs,
+                compiled.secondInputs, compiled.outputs, compiled.names);
+        for (Step step : plan.steps) {
+            plan.topics[plan.firstInputs[step.index]].subscribe(step);
+            if (plan.secondInputs[step.index] != -1)
+                plan.topics[plan.secondInputs[step.index]].subscribe(step);
+            plan.topics[plan.outputs[step.index]].addPublisher(step);
+        }
+        return plan;
+    }
+
+    /**
+     * @return The agents that stand for the steps on the topics.
+     */
+    public Collection<Agent> getAgents() {
+        return Collections.unmodifiableList(Arrays.asList(steps));
+    }
+
+    /**
+     * Evaluates a message published to a slot: stores its number and recomputes the steps downstream of it.
+     */
+    private void update(int slot, Message msg) {
+        // The pass already accounted for its own results, checked before locking as it happens once per step
+        if (publishing == Thread.currentThread())
+            return;
+        synchronized (this) {
+            evaluate(slot, msg);
+        }
+    }
+
+    private void evaluate(int slot, Message msg) {
+        if (handled[slot] == msg)
+            return;
+        handled[slot] = msg;
+        double value = msg.asDouble;
+        if (Double.isNaN(value))
+            return;
+        values[slot] = value;
+        present[slot] = true;
+        int first = markReaders(slot);
+
+        int resultCount = 0;
+        for (int s = first; s < operations.length; s++) {
+            if (!dirty[s])
+                continue;
+            dirty[s] = false;
+            int a = firstInputs[s];
+            int b = secondInputs[s];
+            if (!present[a] || (b != -1 && !present[b]))
+                continue;
+            double x = values[a];
+            double y = b != -1 ? values[b] : 0;
+            double result;
+            switch (operations[s]) {
+                case CompiledSteps.PLUS: result = x + y; break;
+                case CompiledSteps.MINUS: result = x - y; break;
+                case CompiledSteps.MUL: result = x * y; break;
+                case CompiledSteps.DIV: if (y == 0) continue; result = x / y; break;
+                case CompiledSteps.MOD: if (y == 0) continue; result = x % y; break;
+                case CompiledSteps.POW: result = Math.pow(x, y); break;
+                case CompiledSteps.INC: result = x + 1; break;
+                case CompiledSteps.DEC: result = x - 1; break;
+                default: if (x < 0) continue; result = Math.sqrt(x); break;
+            }
+            results[resultCount] = s;
+            resultValues[resultCount++] = result;
+            // A result that is not a number is published but, like a message, does not change the slot
+            if (Double.isNaN(result))
+                continue;
+            int out = outputs[s];
+            values[out] = result;
+            present[out] = true;
+            // Its readers all come after this step
+            markReaders(out);
+        }
+
+        publishing = Thread.currentThread();
+        try {
+            for (int r = 0; r < resultCount; r++) {
+                topics[outputs[results[r]]].publish(resultValues[r]);
+            }
+        } finally {
+            publishing = null;
+        }
+    }
+
+    /**
+     * Marks the steps reading a slot for recomputation.
+     *
+     * @return The first marked step, or the number of steps if no step reads the slot.
+     */
+    private int markReaders(int slot) {
+        int first = operations.length;
+        for (int s : readers[slot]) {
+            dirty[s] = true;
+            first = Math.min(first, s);
+        }
+        return first;
+    }
+
+    /**
+     * Forgets the numbers received, as resetting the agents would.
+     */
+    private synchronized void reset() {
+        Arrays.fill(present, false);
+        Arrays.fill(handled, null);
+    }
+
+    /**
+     * Stands for one step on the topics: passes the messages of its inputs to the plan.
+     */
+    private class Step implements Agent {
+        private final String name;
+        private final int index;
+
+        Step(String name, int index) {
+            this.name = name;
+            this.index = index;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public void reset() {
+            EvaluationPlan.this.reset();
+        }
+
+        @Override
+        public void callback(String topic, Message msg) {
+            int a = firstInputs[index];
+            int b = secondInputs[index];
+            if (topics[a].name.equals(topic))
+                update(a, msg);
+            else if (b != -1 && topics[b].name.equals(topic))
+                update(b, msg);
+        }
+
+        @Override
+        public void callback(Topic topic, Message msg) {
+            int a = firstInputs[index];
+            int b = secondInputs[index];
+            if (topic == topics[a])
+                update(a, msg);
+            else if (b != -1 && topic == topics[b])
+                update(b, msg);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package graph;
+
+/**
+ * The queue of messages waiting for a {@link ParallelAgent}. Any thread may add messages, but only one thread at a
+ * time takes them out: the sender thread of the agent, or the task that drains it in actor mode.
+ * <p>
+ * A message is passed as its topic and its content rather than as one object, so implementations that keep
+ * them in preallocated slots do not allocate anything per message.
+ */
+public interface Mailbox {
+
+    /**
+     * Receives the messages taken out of a mailbox.
+     */
+    interface Handler {
+        /**
+         * @param source The topic object the message was published through, null when only its name is known.
+         * @param topic  The name of the topic.
+         * @param msg    The message.
+         */
+        void handle(Topic source, String topic, Message msg);
+    }
+
+    /**
+     * Adds a message if there is room for it.
+     *
+     * @return true if the message was added, false if the mailbox is full.
+     */
+    boolean offer(Topic source, String topic, Message msg);
+
+    /**
+     * Adds a message, waiting while the mailbox is full.
+     *
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    void put(Topic source, String topic, Message msg) throws InterruptedException;
+
+    /**
+     * Adds a message, waiting for room at most the given time.
+     *
+     * @param timeout The most nanoseconds to wait.
+     * @return true if the message was added, false if the mailbox stayed full.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    boolean offer(Topic source, String topic, Message msg, long timeout) throws InterruptedException;
+
+    /**
+     * Removes the oldest waiting message to make room, from any thread.
+     *
+     * @return true if a message was removed, false if the mailbox is empty or only lets its consumer take messages.
+     */
+    boolean evict();
+
+    /**
+     * Passes the waiting messages to the handler in the order they were added, without waiting for more.
+     *
+     * @param handler The handler of the messages.
+     * @param max     The most messages to pass.
+     * @return The number of messages passed.
+     */
+    int drain(Handler handler, int max);
+
+    /**
+     * Passes the next message to the handler, waiting until there is one.
+     *
+     * @param handler The handler of the message.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    void take(Handler handler) throws InterruptedException;
+
+    /**
+     * @return true if no message is ready to be taken.
+     */
+    boolean isEmpty();
+}
@@ -2,11 +2,19 @@ package graph;
 
 import java.util.Date;
 
+/**
+ * An immutable value published to a topic.
+ * A message holds its number and the time it was created as primitives. Its text and bytes are derived on
+ * first use, so a numeric message passed from agent to agent is a single small object that is never
+ * formatted or parsed.
+ */
 public class Message {
-    public final byte[] data;
-    public final String asText;
     public final double asDouble;
-    public final Date date;
+    private final long nanoTime;
+    // Derived on first use, computing them twice in a race gives equal values. Volatile, so a thread that sees
+    // the array also sees its contents
+    private volatile String text;
+    private volatile byte[] data;
 
     /**
  * Constructs a new Message object with the given string data.
@@ -21,9 +29,8 @@ public Message(String data) {
         throw new NullPointerException("Data cannot be null");
     }
 
-    this.date = new Date();
-    this.data = data.getBytes();
-    this.asText = data;
+    this.nanoTime = System.nanoTime();
+    this.text = data;
     double temp;
     try {
         temp = Double.parseDouble(data);
@@ -37,8 +44,53 @@ public Message(String data) {
         this(new String(data));
     }
 
+    /**
+     * Constructs a numeric message. Its text is only formatted if it is asked for.
+     *
+     * @param data The number.
+     */
     public Message (double data) {
-        this(String.valueOf(data));
+        this.nanoTime = System.nanoTime();
+        this.asDouble = data;
+    }
+
+    /**
+     * @return The text of the message, for a numeric message the number as formatted by {@link String#valueOf(double)}.
+     */
+    public String getText() {
+        String t = text;
+        if (t == null) {
+            t = String.valueOf(asDouble);
+            text = t;
+        }
+        return t;
+    }
+
+    /**
+     * @return The text of the message encoded with the platform charset. The array is shared, it must not be modified.
+     */
+    public byte[] getData() {
+        byte[] d = data;
+        if (d == null) {
+            d = getText().getBytes();
+            data = d;
+        }
+        return d;
+    }
+
+    /**
+     * @return The {@link System#nanoTime()} at which the message was created, to measure how long ago that was.
+     */
+    public long getNanoTime() {
+        return nanoTime;
+    }
+
+    /**
+     * @return The wall-clock time at which the message was created, derived from its nano time.
+     */
+    public Date getDate() {
+        long age = (System.nanoTime() - nanoTime) / 1_000_000;
+        return new Date(System.currentTimeMillis() - age);
     }
 
 }
@@ -0,0 +1,36 @@
+package graph;
+
+/**
+ * What a {@link ParallelAgent} does with a message published while its mailbox is full.
+ * Whatever the policy, the publisher waits at most for the timeout of the agent, so one slow agent cannot stall
+ * the topics upstream of it and the request that published.
+ */
+public enum OverflowPolicy {
+    /**
+     * Waits up to the timeout for room, then drops the message.
+     */
+    BLOCK,
+    /**
+     * Drops the published message at once.
+     */
+    DROP_NEWEST,
+    /**
+     * Drops the oldest waiting messages to make room for the published one.
+     */
+    DROP_OLDEST,
+    /**
+     * Keeps only the newest message of every topic, see {@link ConflatingMailbox}. The mailbox is never full.
+     */
+    CONFLATE;
+
+    /**
+     * Finds a policy by its name as written in a configuration file, like {@code drop_oldest}.
+     *
+     * @param name The name, in any case.
+     * @return The policy.
+     * @throws IllegalArgumentException if there is no policy with that name.
+     */
+    public static OverflowPolicy parse(String name) {
+        return valueOf(name.trim().toUpperCase());
+    }
+}
@@ -1,26 +1,59 @@
 package graph;
 
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * A class that wraps an existing agent and provides parallelism by sending messages to the agent from a separate thread.
- * It uses a queue to hold messages until they can be sent, and a single thread to send messages from the queue.
+ * It uses a mailbox to hold messages until they can be sent, and a single thread to send messages from the mailbox.
+ * <p>
+ * In actor mode the agent has no thread of its own. Its mailbox is drained by a task on a shared executor,
+ * which is only submitted while the mailbox holds messages, so thousands of agents can share a few threads.
+ * At most one task drains an agent at a time, so the agent still sees its messages one by one and in order.
+ * <p>
+ * Either way messages are taken out of the mailbox in batches. Agents that only need the newest value of each
+ * topic can be given a {@link ConflatingMailbox}, which drops the updates they would have computed in vain.
+ * <p>
+ * A publisher never waits longer than the timeout of the agent: when the mailbox is full, the
+ * {@link OverflowPolicy} decides which message is dropped, and dropped messages are counted.
  */
 public class ParallelAgent implements Agent {
+    // Messages sent to the agent per drain, in actor mode before the task makes room for the other agents of the executor
+    private static final int DRAIN_BATCH = 64;
+    // How long a publisher waits for room unless configured otherwise
+    public static final long DEFAULT_TIMEOUT_MILLIS = 1000;
+
     Agent agent;
-    // A queue to hold messages until they can be sent
-    BlockingQueue<MessageQueued> queue;
+    // A mailbox to hold messages until they can be sent
+    Mailbox mailbox;
     // A flag to indicate whether the agent is running
-    boolean running;
-    // The thread that sends messages from the queue, Exercise requires one thread
+    volatile boolean running;
+    // The thread that sends messages from the mailbox, Exercise requires one thread. Null in actor mode
     Thread senderThread;
+    // The executor that drains the mailbox in actor mode, null in thread mode
+    Executor executor;
+    // What to do with a message published while the mailbox is full
+    OverflowPolicy policy;
+    // How long a publisher waits for room with the BLOCK policy, in nanoseconds
+    long timeout;
+    // The messages dropped because the mailbox was full
+    private final LongAdder dropped = new LongAdder();
+    // Whether a drain task is submitted or running, so only one runs at a time
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    // Passes the messages taken out of the mailbox to the agent
+    private final Mailbox.Handler deliver = this::deliver;
 
     /**
      * A class to hold a topic and a message together in queue.
      */
     public static class MessageQueued {
         String topic;
+        // The topic object when the message was published through it, null when only the name is known
+        Topic source;
         Message msg;
 
         /**
@@ -33,6 +66,29 @@ public class ParallelAgent implements Agent {
             this.msg = msg;
             this.topic = topic;
         }
+
+        /**
+         * Constructor for MessageQueued of a message published through a topic.
+         *
+         * @param source The topic of the message.
+         * @param msg    The message.
+         */
+        MessageQueued(Topic source, Message msg) {
+            this(source.name, msg);
+            this.source = source;
+        }
+
+        /**
+         * Constructor for MessageQueued of a message whose topic object may be unknown.
+         *
+         * @param source The topic of the message, or null.
+         * @param topic  The name of the topic.
+         * @param msg    The message.
+         */
+        MessageQueued(Topic source, String topic, Message msg) {
+            this(topic, msg);
+            this.source = source;
+        }
     }
 
     /**
@@ -42,45 +98,270 @@ public class ParallelAgent implements Agent {
      * @param queueSize The size of the queue to hold messages.
      */
     public ParallelAgent(Agent agent, int queueSize) {
+        this(agent, new BlockingMailbox(queueSize));
+    }
+
+    /**
+     * Constructor for a ParallelAgent with a thread of its own that takes the messages out of the given mailbox.
+     *
+     * @param agent   The agent to be wrapped.
+     * @param mailbox The mailbox to hold messages.
+     */
+    public ParallelAgent(Agent agent, Mailbox mailbox) {
+        this(agent, mailbox, OverflowPolicy.BLOCK, DEFAULT_TIMEOUT_MILLIS, null);
+    }
+
+    /**
+     * Constructor for a ParallelAgent in actor mode, which runs the agent on a shared executor instead of a
+     * thread of its own. Its messages wait in a {@link RingMailbox}, so publishers do not contend for a lock.
+     *
+     * @param agent     The agent to be wrapped.
+     * @param queueSize The size of the queue to hold messages.
+     * @param executor  The executor shared by the agents, see {@link #newScheduler(int)}.
+     */
+    public ParallelAgent(Agent agent, int queueSize, Executor executor) {
+        this(agent, new RingMailbox(queueSize, WaitStrategy.YIELD), executor);
+    }
+
+    /**
+     * Constructor for a ParallelAgent in actor mode with the given mailbox.
+     *
+     * @param agent    The agent to be wrapped.
+     * @param mailbox  The mailbox to hold messages.
+     * @param executor The executor shared by the agents, see {@link #newScheduler(int)}.
+     */
+    public ParallelAgent(Agent agent, Mailbox mailbox, Executor executor) {
+        this(agent, mailbox, OverflowPolicy.BLOCK, DEFAULT_TIMEOUT_MILLIS, executor);
+    }
+
+    /**
+     * Constructor for a ParallelAgent with a mailbox that suits the given overflow policy.
+     *
+     * @param agent         The agent to be wrapped.
+     * @param queueSize     The size of the queue to hold messages.
+     * @param policy        What to do with a message published while the queue is full.
+     * @param timeoutMillis How long a publisher waits for room with {@link OverflowPolicy#BLOCK}.
+     * @param executor      The executor shared by the agents in actor mode, or null to give the agent a thread of its own.
+     */
+    public ParallelAgent(Agent agent, int queueSize, OverflowPolicy policy, long timeoutMillis, Executor executor) {
+        this(agent, newMailbox(policy, queueSize, executor != null), policy, timeoutMillis, executor);
+    }
+
+    /**
+     * Constructor for ParallelAgent with every option.
+     *
+     * @param agent         The agent to be wrapped.
+     * @param mailbox       The mailbox to hold messages, it must be able to evict messages for {@link OverflowPolicy#DROP_OLDEST}.
+     * @param policy        What to do with a message published while the mailbox is full.
+     * @param timeoutMillis How long a publisher waits for room with {@link OverflowPolicy#BLOCK}.
+     * @param executor      The executor shared by the agents in actor mode, or null to give the agent a thread of its own.
+     */
+    public ParallelAgent(Agent agent, Mailbox mailbox, OverflowPolicy policy, long timeoutMillis, Executor executor) {
         this.agent = agent;
-        // Initialize the queue with the given size
-        queue = new ArrayBlockingQueue<>(queueSize);
+        this.mailbox = mailbox;
+        this.policy = policy;
+        this.timeout = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.executor = executor;
         running = true;
+        if (executor != null)
+            return;
         senderThread = new Thread(() -> {
             while (running) {
-                MessageQueued msg = take(); // Waits if queue Empty
-                if (msg != null) {
-                    // Send the message to the agent
-                    agent.callback(msg.topic, msg.msg);
+                try {
+                    mailbox.take(deliver); // Waits if mailbox Empty
+                    // Then sends what queued up meanwhile as a batch, without waiting again
+                    mailbox.drain(deliver, DRAIN_BATCH);
+                } catch (InterruptedException ignored) {
+                    // in case of thread stopped
                 }
             }
         });
+        // Agents of a configuration that was never closed must not keep the server from exiting
+        senderThread.setDaemon(true);
         senderThread.start();
     }
 
     /**
-     * Take a message from the queue.
+     * Creates the mailbox that suits an overflow policy: one that drops old messages itself to conflate, one
+     * that lets publishers evict messages to drop the oldest, and otherwise a lock-free ring in actor mode.
+     *
+     * @param policy    The overflow policy.
+     * @param queueSize The size of the mailbox.
+     * @param actor     Whether the agent runs in actor mode, where the consumer never waits for messages.
+     * @return The mailbox.
+     */
+    public static Mailbox newMailbox(OverflowPolicy policy, int queueSize, boolean actor) {
+        switch (policy) {
+            case CONFLATE:
+                return new ConflatingMailbox(WaitStrategy.PARK);
+            case DROP_OLDEST:
+                return new BlockingMailbox(queueSize);
+            default:
+                return actor ? new RingMailbox(queueSize, WaitStrategy.YIELD) : new BlockingMailbox(queueSize);
+        }
+    }
+
+    /**
+     * Creates an executor for agents in actor mode. Its workers handle tasks in the order they were
+     * submitted, which suits tasks that are never joined.
      *
-     * @return The message taken from the queue, or null if the thread is interrupted.
+     * @param parallelism The number of threads that run agents.
+     * @return The executor, to be shut down when no agent uses it any more.
+     */
+    public static ForkJoinPool newScheduler(int parallelism) {
+        return new ForkJoinPool(parallelism, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+    }
+
+    /**
+     * Sends up to {@link #DRAIN_BATCH} queued messages to the agent, then submits itself again if messages are left.
+     */
+    private void drain() {
+        try {
+            if (running)
+                mailbox.drain(deliver, DRAIN_BATCH);
+        } finally {
+            scheduled.set(false);
+        }
+        // A message put after the last poll found the task still scheduled, so it is picked up here
+        if (running && !mailbox.isEmpty())
+            schedule();
+    }
+
+    private void schedule() {
+        if (!scheduled.compareAndSet(false, true))
+            return;
+        try {
+            executor.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            // The executor was shut down with the configuration, the messages are dropped
+            scheduled.set(false);
+        }
+    }
+
+    private void deliver(Topic source, String topic, Message msg) {
+        try {
+            if (source != null)
+                agent.callback(source, msg);
+            else
+                agent.callback(topic, msg);
+        } catch (RuntimeException e) {
+            // A failing message must not stop the agent, nor a worker shared with other agents
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Take a message from the mailbox, only valid while no sender thread or drain task takes them.
+     *
+     * @return The message taken from the mailbox, or null if the thread is interrupted.
      */
     public MessageQueued take() {
+        MessageQueued[] taken = new MessageQueued[1];
         try {
-            return queue.take(); // Waits if queue Empty
+            mailbox.take((source, topic, msg) -> taken[0] = new MessageQueued(source, topic, msg)); // Waits if mailbox Empty
         } catch (InterruptedException e) {
             return null; // in case of thread stopped
         }
+        return taken[0];
     }
 
     /**
-     * Put a message into the queue.
+     * Put a message into the mailbox.
      *
-     * @param msg The message to be put into the queue.
+     * @param msg The message to be put into the mailbox.
      */
     public void put(MessageQueued msg) {
+        put(msg.source, msg.topic, msg.msg);
+    }
+
+    private void put(Topic source, String topic, Message msg) {
+        boolean added;
         try {
-            queue.put(msg);
-        } catch (InterruptedException ignored) {
+            added = mailbox.offer(source, topic, msg) || overflow(source, topic, msg);
+        } catch (InterruptedException e) {
+            // The message is dropped, the publisher still has to see that it was interrupted
+            Thread.currentThread().interrupt();
+            added = false;
+        }
+        if (!added)
+            dropped.increment();
+        else if (executor != null)
+            schedule();
+    }
+
+    /**
+     * Applies the overflow policy to a message that found the mailbox full.
+     *
+     * @return true if the message was added after all.
+     */
+    private boolean overflow(Topic source, String topic, Message msg) throws InterruptedException {
+        switch (policy) {
+            case DROP_NEWEST:
+                return false;
+            case DROP_OLDEST:
+                while (mailbox.evict()) {
+                    dropped.increment();
+                    if (mailbox.offer(source, topic, msg))
+                        return true;
+                }
+                return false;
+            default:
+                if (executor == null)
+                    return mailbox.offer(source, topic, msg, timeout);
+                // The publisher may be a worker of the shared pool that has to drain this very mailbox, so the
+                // pool is allowed to add a thread while it waits
+                TimedOffer offer = new TimedOffer(source, topic, msg);
+                ForkJoinPool.managedBlock(offer);
+                return offer.added;
+        }
+    }
+
+    /**
+     * Waits for room in the mailbox as a blocker the shared pool knows about.
+     */
+    private class TimedOffer implements ForkJoinPool.ManagedBlocker {
+        private final Topic source;
+        private final String topic;
+        private final Message msg;
+        boolean added;
+
+        TimedOffer(Topic source, String topic, Message msg) {
+            this.source = source;
+            this.topic = topic;
+            this.msg = msg;
+        }
+
+        @Override
+        public boolean block() throws InterruptedException {
+            added = mailbox.offer(source, topic, msg, timeout);
+            return true;
         }
+
+        @Override
+        public boolean isReleasable() {
+            return false;
+        }
+    }
+
+    /**
+     * @return The number of messages dropped because the mailbox was full.
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return The number of messages replaced by a newer one while waiting, if the mailbox conflates.
+     */
+    public long getConflated() {
+        return mailbox instanceof ConflatingMailbox ? ((ConflatingMailbox) mailbox).getConflated() : 0;
+    }
+
+    /**
+     * @return What the agent does with messages published while its mailbox is full.
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return policy;
     }
 
     /**
@@ -109,7 +390,18 @@ public class ParallelAgent implements Agent {
      */
     @Override
     public void callback(String topic, Message msg) {
-        put(new MessageQueued(topic, msg));
+        put(null, topic, msg);
+    }
+
+    /**
+     * Send a message to the agent, keeping the topic so the agent can route it by reference.
+     *
+     * @param topic The topic of the message.
+     * @param msg   The message.
+     */
+    @Override
+    public void callback(Topic topic, Message msg) {
+        put(topic, topic.name, msg);
     }
 
     /**
@@ -118,6 +410,7 @@ public class ParallelAgent implements Agent {
     @Override
     public void close() {
         running = false;
-        senderThread.interrupt(); // if take() waits to new message
+        if (senderThread != null)
+            senderThread.interrupt(); // if take() waits to new message
     }
-}
\ No newline at end of file
+}
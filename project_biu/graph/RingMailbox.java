@@ -0,0 +1,144 @@
+package graph;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A mailbox on a preallocated ring of slots that any number of producers fill without locks and a single
+ * consumer empties.
+ * <p>
+ * Every slot has a sequence number that tells whose turn it is. A producer claims the next position by
+ * advancing the tail with a compare-and-set, writes the message into the slot of that position and then
+ * publishes it by moving the sequence on. The consumer takes a slot once its sequence says it was published,
+ * and hands it back to the producers of the next lap by moving the sequence on again. Slots are reused, so
+ * nothing is allocated per message. Threads that have to wait use the {@link WaitStrategy} of the mailbox.
+ */
+public class RingMailbox implements Mailbox {
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final Topic[] sources;
+    private final String[] topics;
+    private final Message[] messages;
+    private final WaitStrategy waitStrategy;
+    // The next position to claim, shared by the producers
+    private final AtomicLong tail = new AtomicLong();
+    // The next position to take, only written by the consumer but read by isEmpty from any thread
+    private volatile long head;
+
+    /**
+     * @param capacity     The most messages the mailbox holds, rounded up to a power of two.
+     * @param waitStrategy How threads wait while the mailbox is full or empty.
+     */
+    public RingMailbox(int capacity, WaitStrategy waitStrategy) {
+        if (capacity < 1 || capacity > 1 << 30)
+            throw new IllegalArgumentException("RingMailbox: capacity must be between 1 and 2^30");
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+            size <<= 1;
+        mask = size - 1;
+        sequences = new AtomicLongArray(size);
+        // Position i is free for the producer claiming it while its slot holds i
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        sources = new Topic[size];
+        topics = new String[size];
+        messages = new Message[size];
+        this.waitStrategy = waitStrategy;
+    }
+
+    @Override
+    public boolean offer(Topic source, String topic, Message msg) {
+        while (true) {
+            long position = tail.get();
+            int slot = (int) position & mask;
+            long diff = sequences.get(slot) - position;
+            if (diff == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    sources[slot] = source;
+                    topics[slot] = topic;
+                    messages[slot] = msg;
+                    // Publishes the slot to the consumer, after the writes above
+                    sequences.set(slot, position + 1);
+                    return true;
+                }
+            } else if (diff < 0) {
+                // The slot still holds the message of the previous lap
+                return false;
+            }
+            // Otherwise another producer claimed the position first
+        }
+    }
+
+    @Override
+    public void put(Topic source, String topic, Message msg) throws InterruptedException {
+        for (int attempt = 0; !offer(source, topic, msg); attempt++) {
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            waitStrategy.idle(attempt);
+        }
+    }
+
+    @Override
+    public boolean offer(Topic source, String topic, Message msg, long timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + timeout;
+        for (int attempt = 0; !offer(source, topic, msg); attempt++) {
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            if (System.nanoTime() - deadline >= 0)
+                return false;
+            waitStrategy.idle(attempt);
+        }
+        return true;
+    }
+
+    /**
+     * Only the consumer takes messages out of the ring.
+     *
+     * @return false.
+     */
+    @Override
+    public boolean evict() {
+        return false;
+    }
+
+    @Override
+    public int drain(Handler handler, int max) {
+        long position = head;
+        int n = 0;
+        while (n < max) {
+            int slot = (int) position & mask;
+            if (sequences.get(slot) != position + 1)
+                break;
+            Topic source = sources[slot];
+            String topic = topics[slot];
+            Message msg = messages[slot];
+            // Cleared so the ring does not keep messages alive
+            sources[slot] = null;
+            topics[slot] = null;
+            messages[slot] = null;
+            sequences.set(slot, position + mask + 1);
+            position++;
+            n++;
+            handler.handle(source, topic, msg);
+        }
+        // Written once per batch, producers only follow the sequences
+        head = position;
+        return n;
+    }
+
+    @Override
+    public void take(Handler handler) throws InterruptedException {
+        for (int attempt = 0; drain(handler, 1) == 0; attempt++) {
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            waitStrategy.idle(attempt);
+        }
+    }
+
+    @Override
+    public boolean isEmpty() {
+        long position = head;
+        return sequences.get((int) position & mask) != position + 1;
+    }
+}
@@ -1,51 +1,122 @@
 package graph;
 
-import java.util.Set;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 
+/**
+ * A named channel that passes the messages published to it on to its subscribers.
+ * The subscribers and publishers are kept in arrays that are never modified: a change copies the array and
+ * replaces it, so publishing iterates a plain array without locks or allocation, from any number of threads,
+ * while agents subscribe and unsubscribe.
+ */
 public class Topic {
+    private static final Agent[] NONE = new Agent[0];
+
     public final String name;
-    Set<Agent> subs;
-    Set<Agent> pubs;
-    Message lastMsg;
+    private final int index;
+    volatile Agent[] subs;
+    volatile Agent[] pubs;
+    volatile Message lastMsg;
     String id;
+    // The version of the topic manager at the last publish, written after lastMsg so readers see the message
+    private volatile long version;
 
     /**
      * Constructs a new Topic with the given name.
      *
-     * @param name The name of the Topic. It should be unique within the system.
+     * @param name  The name of the Topic. It should be unique within the system.
+     * @param index The index of the Topic, assigned by the topic manager.
      * @throws IllegalArgumentException If the provided name is null or empty.
      */
-    Topic(String name) {
+    Topic(String name, int index) {
         if (name == null || name.isEmpty()) {
             throw new IllegalArgumentException("Topic name cannot be null or empty");
         }
         this.name = name;
-        subs = new HashSet<Agent>();
-        pubs = new HashSet<Agent>();
+        this.index = index;
+        subs = NONE;
+        pubs = NONE;
     }
 
-    public void subscribe(Agent a) {
-        subs.add(a);
+    public synchronized void subscribe(Agent a) {
+        subs = add(subs, a);
     }
 
-    public void unsubscribe(Agent a) {
-        subs.remove(a);
+    public synchronized void unsubscribe(Agent a) {
+        subs = remove(subs, a);
     }
 
     public void publish(Message m) {
         lastMsg = m; // Update last message received by the topic
+        version = TopicManagerSingleton.get().nextVersion();
+        // The array read here stays the same, agents subscribing meanwhile get the next message
         for (Agent sub : subs) {
-            sub.callback(this.name, m); // Send message
+            sub.callback(this, m); // Send message
+        }
+        TopicManagerSingleton.get().notifyListeners(this, m);
+    }
+
+    /**
+     * Publishes a number. The message is created without formatting the number as text, so agents that
+     * compute numbers pass them on without producing strings.
+     *
+     * @param value The number to publish.
+     */
+    public void publish(double value) {
+        publish(new Message(value));
+    }
+
+    public synchronized void addPublisher(Agent a) {
+        pubs = add(pubs, a);
+    }
+
+    public synchronized void removePublisher(Agent a) {
+        pubs = remove(pubs, a);
+    }
+
+    /**
+     * Copies an array of agents with one more agent, unless it already holds the agent.
+     */
+    private static Agent[] add(Agent[] agents, Agent a) {
+        for (Agent agent : agents) {
+            if (agent.equals(a))
+                return agents;
+        }
+        Agent[] copy = Arrays.copyOf(agents, agents.length + 1);
+        copy[agents.length] = a;
+        return copy;
+    }
+
+    /**
+     * Copies an array of agents without an agent, or returns it if it does not hold the agent.
+     */
+    private static Agent[] remove(Agent[] agents, Agent a) {
+        for (int i = 0; i < agents.length; i++) {
+            if (agents[i].equals(a)) {
+                if (agents.length == 1)
+                    return NONE;
+                Agent[] copy = new Agent[agents.length - 1];
+                System.arraycopy(agents, 0, copy, 0, i);
+                System.arraycopy(agents, i + 1, copy, i, agents.length - i - 1);
+                return copy;
+            }
         }
+        return agents;
     }
 
-    public void addPublisher(Agent a) {
-        pubs.add(a);
+    /**
+     * @return the agents subscribed to the topic at the time of the call, as a read-only list.
+     */
+    public Collection<Agent> getSubscribers() {
+        return Collections.unmodifiableList(Arrays.asList(subs));
     }
 
-    public void removePublisher(Agent a) {
-        pubs.remove(a);
+    /**
+     * @return the agents publishing to the topic at the time of the call, as a read-only list.
+     */
+    public Collection<Agent> getPublishers() {
+        return Collections.unmodifiableList(Arrays.asList(pubs));
     }
 
     public Message getLastMsg() {
@@ -55,11 +126,33 @@ public class Topic {
         return lastMsg;
     }
 
+    /**
+     * Returns the index of the topic. Indices are dense: the topics created since the topic manager was
+     * last cleared are numbered from 0, so agents and views can keep per-topic state in arrays and find a
+     * topic with {@link TopicManagerSingleton.TopicManager#getTopic(int)}.
+     *
+     * @return the index.
+     */
+    public int getIndex() {
+        return index;
+    }
+
     public String getId() {
         return id;
     }
 
     public void setId(String id) {
         this.id = id;
+        TopicManagerSingleton.get().nextVersion();
+    }
+
+    /**
+     * Returns the version of the topic manager at the last publish to this topic.
+     * Read it before the last message: the message is then at least as new as the version.
+     *
+     * @return the version, 0 if nothing was published to the topic.
+     */
+    public long getVersion() {
+        return version;
     }
 }
@@ -1,40 +1,145 @@
 package graph;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class TopicManagerSingleton {
     public static class TopicManager {
+        private static final int INITIAL_CAPACITY = 64;
         private static final TopicManager instance = new TopicManager();
         Map<String, Topic> topics;
+        // Agents that receive the messages of every topic, such as clients of the event stream
+        private final CopyOnWriteArrayList<Agent> listeners;
+        // Moves on every publish and every change of the topics, so views can tell whether they are stale
+        private final AtomicLong version;
+        // The topics by index, replaced by a larger copy when full
+        private volatile Topic[] byIndex;
+        private volatile int topicCount;
 
         private TopicManager() {
             topics = new ConcurrentHashMap<>();
+            byIndex = new Topic[INITIAL_CAPACITY];
+            listeners = new CopyOnWriteArrayList<>();
+            version = new AtomicLong();
         }
 
         /**
          * Retrieves a Topic object associated with the given numbers.
-         * If the Topic does not exist, a new one is created and added to the map.
+         * If the Topic does not exist, a new one is created and added to the map. The Topic is created at most
+         * once even when several threads ask for it at the same time.
          *
          * @param numbers The unique identifier for the Topic.
          * @return The Topic object associated with the given numbers.
          */
         public Topic getTopic(String numbers) {
             Topic topic = topics.get(numbers);
-            if (topic == null) { // If Topic doesn't exist, create a new one
-                topic = new Topic(numbers);
-                topics.put(numbers, topic);
-            }
+            if (topic == null) // If Topic doesn't exist, create a new one
+                topic = topics.computeIfAbsent(numbers, this::createTopic);
+            return topic;
+        }
+
+        /**
+         * Creates a Topic with the next index, called once per name by {@link #getTopic(String)}.
+         */
+        private synchronized Topic createTopic(String name) {
+            Topic topic = new Topic(name, topicCount);
+            if (topicCount == byIndex.length)
+                byIndex = Arrays.copyOf(byIndex, byIndex.length * 2);
+            byIndex[topicCount] = topic;
+            topicCount++;
+            nextVersion();
             return topic;
         }
 
+        /**
+         * Looks up a Topic by its index, see {@link Topic#getIndex()}.
+         *
+         * @param index the index of the Topic.
+         * @return the Topic, or null if there is no Topic with this index.
+         */
+        public Topic getTopic(int index) {
+            Topic[] topics = byIndex;
+            return index >= 0 && index < topics.length ? topics[index] : null;
+        }
+
+        /**
+         * @return the number of topic indices handed out, every index below it belongs to a Topic.
+         */
+        public int getTopicCount() {
+            return topicCount;
+        }
+
+        /**
+         * Looks up an existing Topic without creating it.
+         *
+         * @param name the name of the Topic.
+         * @return the Topic, or null if there is no Topic with this name.
+         */
+        public Topic findTopic(String name) {
+            return topics.get(name);
+        }
+
         public Collection<Topic> getTopics() {
             return topics.values();
         }
 
         public void clear() {
+            synchronized (this) {
+                byIndex = new Topic[INITIAL_CAPACITY];
+                topicCount = 0;
+            }
             topics.clear();
+            nextVersion();
+        }
+
+        /**
+         * Returns the version of the topics. It changes whenever a message is published, a topic is added or
+         * removed, or the id of a topic changes, so a view rendered at one version is still up to date while
+         * the version stays the same.
+         *
+         * @return the current version.
+         */
+        public long getVersion() {
+            return version.get();
+        }
+
+        /**
+         * Moves the version forward.
+         *
+         * @return the new version.
+         */
+        long nextVersion() {
+            return version.incrementAndGet();
+        }
+
+        /**
+         * Adds an agent that receives the messages published to any topic.
+         * Its callback runs on the publishing thread, so it must return quickly and never block.
+         *
+         * @param listener the agent to add.
+         */
+        public void addListener(Agent listener) {
+            listeners.add(listener);
+        }
+
+        public void removeListener(Agent listener) {
+            listeners.remove(listener);
+        }
+
+        /**
+         * Passes a published message to the listeners.
+         *
+         * @param topic the topic the message was published to.
+         * @param msg   the published message.
+         */
+        void notifyListeners(Topic topic, Message msg) {
+            for (Agent listener : listeners) {
+                listener.callback(topic, msg);
+            }
         }
     }
 
@@ -0,0 +1,45 @@
+package graph;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * How a thread waits for a {@link RingMailbox}, either a producer for room or the consumer for a message.
+ * The thread checks the mailbox again after every call, so the choice trades the latency of noticing the change
+ * against the CPU burnt while waiting.
+ */
+public interface WaitStrategy {
+    /**
+     * Busy spins, for the lowest latency when a core can be dedicated to every waiting thread.
+     */
+    WaitStrategy SPIN = attempt -> Thread.onSpinWait();
+
+    /**
+     * Spins briefly, then gives the core to other threads between checks.
+     */
+    WaitStrategy YIELD = attempt -> {
+        if (attempt < 100)
+            Thread.onSpinWait();
+        else
+            Thread.yield();
+    };
+
+    /**
+     * Spins and yields briefly, then sleeps for a time that doubles with every check up to about 8 milliseconds,
+     * so an idle thread costs next to nothing.
+     */
+    WaitStrategy PARK = attempt -> {
+        if (attempt < 100)
+            Thread.onSpinWait();
+        else if (attempt < 200)
+            Thread.yield();
+        else
+            LockSupport.parkNanos(1000L << Math.min(attempt - 200, 13));
+    };
+
+    /**
+     * Waits once before the next check.
+     *
+     * @param attempt The number of checks since the wait started.
+     */
+    void idle(int attempt);
+}
@@ -0,0 +1,71 @@
+package server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * The body of a request on a blocking connection.
+ * It first returns the bytes that were received together with the headers, then reads the rest straight
+ * from the socket, never past the end of the body, so the next request on the connection stays intact.
+ */
+class BodyInputStream extends InputStream {
+    private final ByteBuffer buffered;
+    private final InputStream source;
+    private long remaining;
+
+    /**
+     * Constructs a new BodyInputStream.
+     *
+     * @param buffered the received bytes that were not decoded yet, shared with the connection.
+     * @param source   the input stream of the connection.
+     * @param length   the length of the body.
+     */
+    BodyInputStream(ByteBuffer buffered, InputStream source, long length) {
+        this.buffered = buffered;
+        this.source = source;
+        this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (remaining == 0)
+            return -1;
+        if (len == 0)
+            return 0;
+        int n = (int) Math.min(len, remaining);
+        if (buffered.hasRemaining()) {
+            n = Math.min(n, buffered.remaining());
+            buffered.get(b, off, n);
+        } else {
+            n = source.read(b, off, n);
+            if (n < 0)
+                throw new EOFException("Connection closed before the end of the body");
+        }
+        remaining -= n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(remaining, buffered.remaining());
+    }
+
+    /**
+     * Reads and discards the part of the body the servlet did not read.
+     *
+     * @throws IOException if reading from the connection fails.
+     */
+    void skipRemaining() throws IOException {
+        byte[] skip = new byte[8192];
+        while (read(skip, 0, skip.length) != -1) {
+        }
+    }
+}
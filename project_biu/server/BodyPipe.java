@@ -0,0 +1,115 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Passes the body of a request from an event loop to the worker thread reading it.
+ * The event loop offers the chunks it receives without blocking. Once more than a fixed number of bytes
+ * wait to be read it is told to pause reading, and it is resumed when the reader has caught up,
+ * so a large body is never held in memory as a whole.
+ */
+class BodyPipe extends InputStream {
+    private final int maxBuffered;
+    private final Runnable resume;
+    private final ArrayDeque<ByteBuffer> chunks;
+    private int buffered;
+    private boolean paused;
+    private boolean ended;
+    private boolean failed;
+
+    /**
+     * Constructs a new BodyPipe.
+     *
+     * @param maxBuffered the number of waiting bytes after which the event loop should pause reading.
+     * @param resume      called from the reading thread when the event loop may read again.
+     */
+    BodyPipe(int maxBuffered, Runnable resume) {
+        this.maxBuffered = maxBuffered;
+        this.resume = resume;
+        this.chunks = new ArrayDeque<>();
+    }
+
+    /**
+     * Adds a received chunk of the body.
+     *
+     * @param chunk the chunk, owned by the pipe from now on.
+     * @return false if the event loop should pause reading until it is resumed.
+     */
+    synchronized boolean offer(ByteBuffer chunk) {
+        chunks.add(chunk);
+        buffered += chunk.remaining();
+        notifyAll();
+        if (buffered >= maxBuffered) {
+            paused = true;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Marks the end of the body, after all its chunks were offered.
+     */
+    synchronized void end() {
+        ended = true;
+        notifyAll();
+    }
+
+    /**
+     * Marks the body as broken because the connection was closed.
+     */
+    synchronized void fail() {
+        failed = true;
+        notifyAll();
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        int n;
+        boolean resumeNow = false;
+        synchronized (this) {
+            while (chunks.isEmpty() && !ended && !failed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            if (chunks.isEmpty()) {
+                if (failed)
+                    throw new IOException("Connection closed before the end of the body");
+                return -1;
+            }
+            ByteBuffer chunk = chunks.peek();
+            n = Math.min(len, chunk.remaining());
+            chunk.get(b, off, n);
+            if (!chunk.hasRemaining())
+                chunks.poll();
+            buffered -= n;
+            if (paused && buffered < maxBuffered / 2) {
+                paused = false;
+                resumeNow = true;
+            }
+        }
+        if (resumeNow)
+            resume.run();
+        return n;
+    }
+
+    @Override
+    public synchronized int available() {
+        return buffered;
+    }
+}
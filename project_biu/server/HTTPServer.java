@@ -4,6 +4,9 @@ import servlets.*;
 public interface HTTPServer extends Runnable{
     public void addServlet(String httpCommanmd, String uri, Servlet s);
     public void removeServlet(String httpCommanmd, String uri);
+    public void setExpensive(String httpCommand, String uri);
+    public void setStreaming(String httpCommand, String uri);
+    public ServerMetrics getMetrics();
     public void start();
     public void close();
 }
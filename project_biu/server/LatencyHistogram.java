@@ -0,0 +1,133 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations in nanoseconds with log-linear buckets.
+ * Every power of two is split into four buckets, so a recorded value is known to within 25% whatever
+ * its magnitude. Recording finds the bucket with a few bit operations and increments it atomically,
+ * without locks or allocation, so it can be called on every request.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts;
+    private final LongAdder sum;
+
+    public LatencyHistogram() {
+        this.counts = new AtomicLongArray(BUCKETS);
+        this.sum = new LongAdder();
+    }
+
+    /**
+     * Records a duration.
+     *
+     * @param nanos the duration in nanoseconds, negative values are recorded as 0.
+     */
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        counts.incrementAndGet(index(nanos));
+        sum.add(nanos);
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @param index the index of a bucket.
+     * @return the smallest value above the bucket.
+     */
+    static long upperBound(int index) {
+        if (index < SUB_BUCKETS)
+            return index + 1;
+        int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+        int sub = index % SUB_BUCKETS;
+        return (1L << exponent) + ((long) (sub + 1) << (exponent - SUB_BITS));
+    }
+
+    /**
+     * Takes a copy of the counts. Recording may go on meanwhile, so the copy is only nearly consistent.
+     *
+     * @return the snapshot.
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+        }
+        return new Snapshot(copy, sum.sum());
+    }
+
+    /**
+     * The counts of a histogram at one moment.
+     */
+    public static class Snapshot {
+        private final long[] counts;
+        private final long sum;
+        private final long count;
+
+        Snapshot(long[] counts, long sum) {
+            this.counts = counts;
+            this.sum = sum;
+            long total = 0;
+            for (long c : counts) {
+                total += c;
+            }
+            this.count = total;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the sum of the recorded durations in nanoseconds.
+         */
+        public long getSum() {
+            return sum;
+        }
+
+        /**
+         * Estimates a quantile as the upper bound of the bucket it falls into.
+         *
+         * @param q the quantile, between 0 and 1.
+         * @return the estimated duration in nanoseconds, 0 if nothing was recorded.
+         */
+        public long quantile(double q) {
+            if (count == 0)
+                return 0;
+            long rank = Math.max(1, (long) Math.ceil(q * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank)
+                    return upperBound(i);
+            }
+            return upperBound(counts.length - 1);
+        }
+
+        /**
+         * Counts the recorded durations below a power of two.
+         *
+         * @param exponent the exponent of the bound in nanoseconds.
+         * @return the number of durations below {@code 2^exponent} nanoseconds.
+         */
+        public long countBelow(int exponent) {
+            long bound = 1L << exponent;
+            long below = 0;
+            for (int i = 0; i < counts.length && upperBound(i) <= bound; i++) {
+                below += counts[i];
+            }
+            return below;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package server;
+
+import servlets.Servlet;
+import server.RequestParser.RequestInfo;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serves the metrics of a server, in the Prometheus text format by default and as JSON when the request
+ * has {@code ?format=json} or accepts application/json.
+ */
+public class MetricsServlet implements Servlet {
+    private final ServerMetrics metrics;
+
+    /**
+     * Constructs a new MetricsServlet.
+     *
+     * @param metrics the metrics to serve, see {@link HTTPServer#getMetrics()}.
+     */
+    public MetricsServlet(ServerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void handle(RequestInfo ri, OutputStream toClient) throws IOException {
+        String accept = ri.getHeader("Accept");
+        boolean json = "json".equals(ri.getParameters().get("format"))
+                || (accept != null && accept.contains("application/json"));
+        byte[] body = (json ? metrics.toJson() : metrics.toPrometheus()).getBytes(StandardCharsets.UTF_8);
+        String contentType = json ? "application/json" : "text/plain; version=0.0.4; charset=utf-8";
+        toClient.write(("HTTP/1.1 200 OK\r\n" +
+                "Content-Type: " + contentType + "\r\n" +
+                "Content-Length: " + body.length + "\r\n" +
+                "Cache-Control: no-store\r\n" +
+                "\r\n").getBytes());
+        toClient.write(body);
+        toClient.flush();
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,269 @@
+package server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Reads the parts of a multipart/form-data body as a stream.
+ * Only a fixed-size buffer is held, no matter how large the parts are, so uploads can be written
+ * to their destination while they are received.
+ */
+public class MultipartReader {
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final InputStream in;
+    // The line break and dashes that precede every boundary
+    private final byte[] delimiter;
+    private final byte[] buf;
+    private int pos;
+    private int limit;
+    private boolean eof;
+    private boolean atDelimiter;
+    private boolean finished;
+
+    /**
+     * Constructs a new MultipartReader.
+     *
+     * @param in       the body of the request.
+     * @param boundary the boundary from the Content-Type header.
+     */
+    public MultipartReader(InputStream in, String boundary) {
+        this.in = in;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        this.buf = new byte[Math.max(BUFFER_SIZE, delimiter.length * 4)];
+        // The first boundary has no line break before it, so one is assumed
+        buf[0] = '\r';
+        buf[1] = '\n';
+        limit = 2;
+    }
+
+    /**
+     * Extracts the boundary from a multipart Content-Type header.
+     *
+     * @param contentType the value of the Content-Type header, may be null.
+     * @return the boundary, or null if the header does not declare one.
+     */
+    public static String boundary(String contentType) {
+        if (contentType == null)
+            return null;
+        int index = contentType.indexOf("boundary=");
+        if (index == -1)
+            return null;
+        String boundary = contentType.substring(index + 9);
+        int end = boundary.indexOf(';');
+        if (end != -1)
+            boundary = boundary.substring(0, end);
+        boundary = boundary.trim();
+        if (boundary.length() > 1 && boundary.startsWith("\"") && boundary.endsWith("\""))
+            boundary = boundary.substring(1, boundary.length() - 1);
+        return boundary.isEmpty() ? null : boundary;
+    }
+
+    /**
+     * Moves to the next part, skipping whatever was not read of the current one.
+     *
+     * @return the next part, or null after the last part.
+     * @throws IOException if reading fails or the body is malformed.
+     */
+    public Part nextPart() throws IOException {
+        if (finished)
+            return null;
+        while (readData(null, 0, Integer.MAX_VALUE) != -1) {
+        }
+        atDelimiter = false;
+        // Two dashes after the boundary close the body, otherwise the part headers follow the line break
+        ensure(2);
+        if (buf[pos] == '-' && buf[pos + 1] == '-') {
+            finished = true;
+            return null;
+        }
+        readLine();
+
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        String line;
+        while (!(line = readLine()).isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0)
+                headers.put(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+        }
+        return new Part(headers);
+    }
+
+    /**
+     * Reads data of the current part.
+     *
+     * @param b   the buffer to read into.
+     * @param off the offset in the buffer.
+     * @param len the maximum number of bytes to read.
+     * @return the number of bytes read, or -1 at the end of the part.
+     * @throws IOException if reading fails or the body ends before the closing boundary.
+     */
+    public int read(byte[] b, int off, int len) throws IOException {
+        return readData(b, off, len);
+    }
+
+    /**
+     * Writes the rest of the current part to a channel, straight from the reader's buffer.
+     *
+     * @param target the channel to write to.
+     * @return the number of bytes written.
+     * @throws IOException if reading or writing fails.
+     */
+    public long transferPart(WritableByteChannel target) throws IOException {
+        long total = 0;
+        int n;
+        while ((n = readData(null, 0, Integer.MAX_VALUE)) != -1) {
+            ByteBuffer chunk = ByteBuffer.wrap(buf, pos - n, n);
+            while (chunk.hasRemaining()) {
+                target.write(chunk);
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Consumes data up to the next delimiter. Bytes that may start a delimiter are kept in the buffer
+     * until enough was received to tell.
+     *
+     * @param b   the buffer to copy into, or null to only consume the data.
+     * @param off the offset in the buffer.
+     * @param len the maximum number of bytes to consume.
+     * @return the number of bytes consumed, which end at the buffer position, or -1 at the delimiter.
+     * @throws IOException if reading fails or the body ends before the delimiter.
+     */
+    private int readData(byte[] b, int off, int len) throws IOException {
+        if (atDelimiter || finished)
+            return -1;
+        while (true) {
+            int found = indexOfDelimiter();
+            if (found == pos) {
+                pos += delimiter.length;
+                atDelimiter = true;
+                return -1;
+            }
+            int available = found != -1 ? found - pos : limit - pos - (delimiter.length - 1);
+            if (available > 0) {
+                int n = Math.min(len, available);
+                if (b != null)
+                    System.arraycopy(buf, pos, b, off, n);
+                pos += n;
+                return n;
+            }
+            if (eof)
+                throw new EOFException("Multipart body ended without a closing boundary");
+            fill();
+        }
+    }
+
+    private int indexOfDelimiter() {
+        outer:
+        for (int i = pos; i <= limit - delimiter.length; i++) {
+            for (int j = 0; j < delimiter.length; j++) {
+                if (buf[i + j] != delimiter[j])
+                    continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Reads a header line of a part.
+     *
+     * @return the line without its line break.
+     * @throws IOException if reading fails or the line does not fit the buffer.
+     */
+    private String readLine() throws IOException {
+        int scanned = pos;
+        while (true) {
+            for (int i = scanned; i < limit; i++) {
+                if (buf[i] == '\n') {
+                    int end = i > pos && buf[i - 1] == '\r' ? i - 1 : i;
+                    String line = new String(buf, pos, end - pos, StandardCharsets.ISO_8859_1);
+                    pos = i + 1;
+                    return line;
+                }
+            }
+            if (eof || (pos == 0 && limit == buf.length))
+                throw new IOException("Malformed multipart part headers");
+            scanned = limit - pos;
+            fill();
+        }
+    }
+
+    private void ensure(int n) throws IOException {
+        while (limit - pos < n) {
+            if (eof)
+                throw new EOFException("Multipart body ended without a closing boundary");
+            fill();
+        }
+    }
+
+    /**
+     * Moves the unread bytes to the start of the buffer and reads more after them.
+     *
+     * @throws IOException if reading fails.
+     */
+    private void fill() throws IOException {
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        int n = in.read(buf, limit, buf.length - limit);
+        if (n < 0)
+            eof = true;
+        else
+            limit += n;
+    }
+
+    /**
+     * A part of a multipart body, described by its headers.
+     */
+    public static class Part {
+        private final Map<String, String> headers;
+
+        Part(Map<String, String> headers) {
+            this.headers = headers;
+        }
+
+        public Map<String, String> getHeaders() {
+            return headers;
+        }
+
+        /**
+         * @return the form field name of the part, or null if it has none.
+         */
+        public String getName() {
+            return dispositionParameter("name");
+        }
+
+        /**
+         * @return the file name of the part, or null if the part is not a file.
+         */
+        public String getFilename() {
+            return dispositionParameter("filename");
+        }
+
+        private String dispositionParameter(String key) {
+            String disposition = headers.get("Content-Disposition");
+            if (disposition == null)
+                return null;
+            for (String param : disposition.split(";")) {
+                param = param.trim();
+                if (param.startsWith(key + "=")) {
+                    String value = param.substring(key.length() + 1);
+                    return value.replace("\"", "");
+                }
+            }
+            return null;
+        }
+    }
+}
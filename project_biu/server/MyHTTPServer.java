@@ -4,24 +4,44 @@ import servlets.Servlet;
 import server.RequestParser.RequestInfo;
 
 import java.io.*;
+import java.lang.reflect.Method;
+import java.net.ProtocolException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.util.concurrent.*;
 
 
 /**
  * This class represents a simple HTTP server that can handle multiple client connections concurrently.
- * It uses a fixed thread pool to process incoming requests and supports adding and removing servlets.
+ * Every connection is served by a thread of a bounded pool, which sheds connections with 503 Service Unavailable
+ * once too many wait for a thread, and it supports adding and removing servlets.
+ * {@link #withVirtualThreads(int, int)} creates a server that handles every connection on its own virtual thread
+ * instead, with a limit on the connections handled at once.
  */
 public class MyHTTPServer extends Thread implements HTTPServer {
+    static final int DEFAULT_IDLE_TIMEOUT = 5000;
+    static final int DEFAULT_MAX_REQUESTS = 100;
+    static final int DEFAULT_MAX_QUEUED = 256;
+    static final long DEFAULT_MAX_QUEUE_TIME = 2000;
+    // How often a kept-alive connection waiting for its next request checks whether others wait for its thread
+    private static final int IDLE_POLL_INTERVAL = 50;
+    private static final int READ_BUFFER_SIZE = 8192;
+
     private final int port;
     private final int nThreads;
     private ServerSocket serverSocket;
     private boolean running;
     private final ExecutorService executor;
-    private final ConcurrentHashMap<String, ConcurrentHashMap<String, Servlet>> servletsMap;
+    // Bounds the number of connections handled at once, null when the executor bounds it
+    private final Semaphore limiter;
+    private final RequestDispatcher dispatcher;
+    // Connections that waited longer than this for a thread are answered with 503 Service Unavailable
+    private final long maxQueueTime;
+    private int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private int maxRequests = DEFAULT_MAX_REQUESTS;
 
     /**
      * Constructs a new MyHTTPServer instance.
@@ -30,13 +50,92 @@ public class MyHTTPServer extends Thread implements HTTPServer {
      * @param nThreads the number of threads in the thread pool.
      */
     public MyHTTPServer(int port, int nThreads) {
+        this(port, nThreads, DEFAULT_MAX_QUEUED, DEFAULT_MAX_QUEUE_TIME);
+    }
+
+    /**
+     * Constructs a new MyHTTPServer instance with bounded queueing.
+     * Connections that find the queue full, or that waited longer than the maximum queue time for a thread,
+     * are answered with 503 Service Unavailable and a Retry-After header instead of waiting without limit.
+     * Expensive servlets, see {@link #setExpensive(String, String)}, are limited to half of the threads,
+     * so cheap requests such as static files keep being served under load.
+     *
+     * @param port         the port number on which the server will listen for incoming connections.
+     * @param nThreads     the number of threads in the thread pool.
+     * @param maxQueued    the maximum number of connections waiting for a thread.
+     * @param maxQueueTime the maximum time in milliseconds a connection or an expensive request waits.
+     */
+    public MyHTTPServer(int port, int nThreads, int maxQueued, long maxQueueTime) {
+        this(port, nThreads, new ThreadPoolExecutor(nThreads, nThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(maxQueued)), null, maxQueueTime);
+    }
+
+    private MyHTTPServer(int port, int nThreads, ExecutorService executor, Semaphore limiter, long maxQueueTime) {
         this.port = port;
         this.nThreads = nThreads;
-        this.executor = Executors.newFixedThreadPool(nThreads);
-        this.servletsMap = new ConcurrentHashMap<>();
-        this.servletsMap.put("GET", new ConcurrentHashMap<>());
-        this.servletsMap.put("POST", new ConcurrentHashMap<>());
-        this.servletsMap.put("DELETE", new ConcurrentHashMap<>());
+        this.executor = executor;
+        this.limiter = limiter;
+        this.maxQueueTime = maxQueueTime;
+        this.dispatcher = new RequestDispatcher();
+        this.dispatcher.setAdmission(Math.max(1, nThreads / 2), maxQueueTime);
+    }
+
+    /**
+     * Creates a server that handles each connection on a new virtual thread, so blocking servlet I/O
+     * does not hold one of a few pool threads.
+     * The number of connections handled at once is bounded by a limiter; further connections wait in the
+     * listen backlog until a handler finishes.
+     * Virtual threads need Java 21. On older runtimes the server is refused rather than run on as many platform
+     * threads, which would not be the lightweight model asked for.
+     *
+     * @param port          the port number on which the server will listen for incoming connections.
+     * @param maxConcurrent the maximum number of connections handled at the same time.
+     * @return the new server, not yet started.
+     * @throws UnsupportedOperationException if the runtime has no virtual threads.
+     */
+    public static MyHTTPServer withVirtualThreads(int port, int maxConcurrent) {
+        return new MyHTTPServer(port, maxConcurrent, newVirtualThreadExecutor(), new Semaphore(maxConcurrent),
+                DEFAULT_MAX_QUEUE_TIME);
+    }
+
+    /**
+     * Creates an executor that starts a new virtual thread for each task.
+     * The factory is looked up reflectively so the server still compiles and runs on runtimes without virtual threads.
+     *
+     * @return the virtual thread executor.
+     * @throws UnsupportedOperationException if virtual threads are not available.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or later, this is Java "
+                    + Runtime.version().feature());
+        }
+    }
+
+    /**
+     * @return true if this runtime can run {@link #withVirtualThreads(int, int)}.
+     */
+    public static boolean hasVirtualThreads() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Configures persistent connections.
+     *
+     * @param idleTimeout the time in milliseconds a connection may wait for its next request before it is closed.
+     * @param maxRequests the maximum number of requests served on one connection, 1 disables keep-alive.
+     */
+    public void setKeepAlive(int idleTimeout, int maxRequests) {
+        this.idleTimeout = idleTimeout;
+        this.maxRequests = maxRequests;
     }
 
     /**
@@ -47,7 +146,7 @@ public class MyHTTPServer extends Thread implements HTTPServer {
      * @param servlet     the servlet instance.
      */
     public void addServlet(String httpCommand, String uri, Servlet servlet) {
-        this.servletsMap.get(httpCommand.toUpperCase()).put(uri, servlet);
+        dispatcher.addServlet(httpCommand, uri, servlet);
     }
 
     /**
@@ -57,22 +156,77 @@ public class MyHTTPServer extends Thread implements HTTPServer {
      * @param uri         the URI pattern that the servlet was matching.
      */
     public void removeServlet(String httpCommand, String uri) {
-        this.servletsMap.get(httpCommand.toUpperCase()).remove(uri);
+        dispatcher.removeServlet(httpCommand, uri);
+    }
+
+    /**
+     * Marks a servlet as expensive. Only a limited number of expensive requests is handled at once,
+     * and an expensive request that cannot be admitted within the maximum queue time is answered with
+     * 503 Service Unavailable.
+     *
+     * @param httpCommand the HTTP command of the servlet.
+     * @param uri         the URI pattern the servlet was registered with.
+     */
+    public void setExpensive(String httpCommand, String uri) {
+        dispatcher.setExpensive(httpCommand, uri);
+    }
+
+    /**
+     * Marks a servlet as streaming, such as an event stream. Its requests are served on a thread of their own
+     * rather than one of the pool, and are not counted against the queue or the expensive requests.
+     *
+     * @param httpCommand the HTTP command of the servlet.
+     * @param uri         the URI pattern the servlet was registered with.
+     */
+    @Override
+    public void setStreaming(String httpCommand, String uri) {
+        dispatcher.setStreaming(httpCommand, uri);
+    }
+
+    /**
+     * @return the request and connection metrics of the server.
+     */
+    @Override
+    public ServerMetrics getMetrics() {
+        return dispatcher.getMetrics();
     }
 
     /**
      * Starts the server and begins listening for incoming connections.
+     * Connections the executor cannot queue are rejected on the accepting thread.
      */
     public void run() {
         try {
             serverSocket = new ServerSocket(port);
             serverSocket.setSoTimeout(1000);
             while (running) {
+                if (!acquirePermit())
+                    continue;
                 try {
                     Socket clientSocket = serverSocket.accept();
-                    executor.submit(() -> handleClient(clientSocket));
+                    long acceptedAt = System.nanoTime();
+                    dispatcher.getMetrics().connectionAccepted();
+                    try {
+                        executor.execute(() -> {
+                            try {
+                                long waited = System.nanoTime() - acceptedAt;
+                                dispatcher.getMetrics().recordQueueWait(waited);
+                                if (waited > TimeUnit.MILLISECONDS.toNanos(maxQueueTime))
+                                    rejectClient(clientSocket);
+                                else
+                                    handleClient(clientSocket);
+                            } finally {
+                                releasePermit();
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        releasePermit();
+                        rejectClient(clientSocket);
+                    }
                 } catch (SocketTimeoutException | SocketException ignored) {
+                    releasePermit();
                 } catch (IOException e) {
+                    releasePermit();
                     e.printStackTrace();
                     if (serverSocket != null && !serverSocket.isClosed())
                         serverSocket.close();
@@ -83,6 +237,26 @@ public class MyHTTPServer extends Thread implements HTTPServer {
         }
     }
 
+    /**
+     * Waits for the limiter to allow another connection.
+     *
+     * @return true if a connection may be accepted, false if the wait timed out and the caller should check again.
+     */
+    private boolean acquirePermit() {
+        if (limiter == null)
+            return true;
+        try {
+            return limiter.tryAcquire(1000, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+    private void releasePermit() {
+        if (limiter != null)
+            limiter.release();
+    }
+
     /**
      * Starts the server.
      */
@@ -98,6 +272,7 @@ public class MyHTTPServer extends Thread implements HTTPServer {
      */
     public void close() {
         this.running = false;
+        dispatcher.closeStreams();
         executor.shutdown();
         try {
             if (!executor.awaitTermination(1000, TimeUnit.MILLISECONDS)) {
@@ -115,70 +290,155 @@ public class MyHTTPServer extends Thread implements HTTPServer {
     }
 
     /**
-     * Handles an incoming client connection by parsing the request, finding the appropriate servlet,
+     * Handles an incoming client connection by parsing the requests, finding the appropriate servlet,
      * and invoking the servlet's handle method.
+     * The connection is kept open for further requests while the client asks for keep-alive, up to the
+     * configured number of requests. Pipelined requests are answered in the order they were sent.
+     * A request to a streaming servlet ends the loop, the connection is then served on a stream thread and the
+     * pool thread is free for other connections.
      *
      * @param clientSocket the socket connected to the client.
      */
     private void handleClient(Socket clientSocket) {
+        boolean streaming = false;
         try {
-            RequestInfo requestInfo = RequestParser.parseRequest(new BufferedReader(new InputStreamReader(clientSocket.getInputStream())));
-            if (requestInfo == null) {
-                sendNotFound(clientSocket.getOutputStream());
-                return;
-            }
-            Servlet servlet = findServlet(requestInfo);
-            if (servlet != null) {
-                servlet.handle(requestInfo, clientSocket.getOutputStream());
-            } else {
-                sendNotFound(clientSocket.getOutputStream());
+            InputStream in = clientSocket.getInputStream();
+            OutputStream out = new BufferedOutputStream(clientSocket.getOutputStream());
+            RequestDecoder decoder = new RequestDecoder(RequestDecoder.MAX_BUFFERED_BODY);
+            ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE).flip();
+            for (int served = 0; served < maxRequests && running; served++) {
+                RequestInfo requestInfo;
+                try {
+                    requestInfo = readRequest(clientSocket, in, decoder, buffer, served > 0);
+                } catch (ProtocolException e) {
+                    dispatcher.getMetrics().connectionError();
+                    RequestDispatcher.sendBadRequest(out);
+                    break;
+                }
+                if (requestInfo == null)
+                    break; // The client closed the connection
+                BodyInputStream body = null;
+                if (requestInfo.isStreamed()) {
+                    body = new BodyInputStream(buffer, in, requestInfo.getContentLength());
+                    requestInfo.setBodyStream(body);
+                }
+                if (dispatcher.isStreaming(requestInfo)) {
+                    streaming = dispatcher.startStream(() -> stream(clientSocket, requestInfo, out));
+                    if (!streaming)
+                        RequestDispatcher.sendServiceUnavailable(out, maxQueueTime);
+                    break;
+                }
+                boolean keepAlive = dispatcher.dispatch(requestInfo, out);
+                out.flush();
+                if (!keepAlive || isSaturated())
+                    break;
+                // Skip what the servlet did not read of the body before the next request
+                if (body != null)
+                    body.skipRemaining();
             }
+        } catch (SocketTimeoutException ignored) {
+            // The connection was idle for too long
         } catch (IOException e) {
+            dispatcher.getMetrics().connectionError();
             e.printStackTrace();
         } finally {
-            try {
-                clientSocket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            if (!streaming)
+                closeQuietly(clientSocket);
+        }
+    }
+
+    /**
+     * Serves a request to a streaming servlet on a stream thread, then closes the connection.
+     *
+     * @param clientSocket the socket connected to the client.
+     * @param requestInfo  the streaming request.
+     * @param out          the buffered output stream of the connection.
+     */
+    private void stream(Socket clientSocket, RequestInfo requestInfo, OutputStream out) {
+        try {
+            dispatcher.dispatch(requestInfo, out);
+            out.flush();
+        } catch (IOException ignored) {
+            // The client disconnected
+        } finally {
+            closeQuietly(clientSocket);
+        }
+    }
+
+    private static void closeQuietly(Socket clientSocket) {
+        try {
+            clientSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
     /**
-     * Finds the appropriate servlet for a given request by matching the request's HTTP command and URI.
+     * Answers a connection the server has no capacity for with 503 Service Unavailable and closes it.
      *
-     * @param requestInfo the parsed request information.
-     * @return the servlet that matches the request, or null if no matching servlet is found.
+     * @param clientSocket the socket connected to the client.
      */
-    private Servlet findServlet(RequestInfo requestInfo) {
-        ConcurrentHashMap<String, Servlet> map = servletsMap.get(requestInfo.getHttpCommand().toUpperCase());
-        String uri = requestInfo.getUri().split("\\?")[0];
+    private void rejectClient(Socket clientSocket) {
+        dispatcher.getMetrics().connectionRejected();
+        try (clientSocket) {
+            RequestDispatcher.sendServiceUnavailable(clientSocket.getOutputStream(), maxQueueTime);
+        } catch (IOException ignored) {
+            // The client already gave up
+        }
+    }
 
-        while (!uri.isEmpty()) {
-            Servlet servlet = map.get(uri);
-            if (servlet != null) {
-                return servlet;
+    /**
+     * Reads the next request from the connection.
+     * Bytes already received after the previous request are decoded first.
+     * While a kept-alive connection waits for the first byte of its next request it gives its thread up as soon as
+     * other connections wait for one, instead of holding it for the whole idle timeout.
+     *
+     * @param socket    the socket connected to the client.
+     * @param in        the input stream of the connection.
+     * @param decoder   the decoder of the connection.
+     * @param buffer    the received bytes that were not decoded yet.
+     * @param keptAlive whether a request was already served on the connection.
+     * @return the request, or null if the client closed the connection or it was closed for a waiting one.
+     * @throws IOException if reading fails or the request is malformed.
+     */
+    private RequestInfo readRequest(Socket socket, InputStream in, RequestDecoder decoder, ByteBuffer buffer,
+                                    boolean keptAlive) throws IOException {
+        long idleSince = System.nanoTime();
+        boolean started = buffer.hasRemaining();
+        socket.setSoTimeout(started ? idleTimeout : Math.min(idleTimeout, IDLE_POLL_INTERVAL));
+        RequestInfo requestInfo;
+        while ((requestInfo = decoder.decode(buffer)) == null) {
+            int n;
+            try {
+                n = in.read(buffer.array());
+            } catch (SocketTimeoutException e) {
+                if (!started && keptAlive && isSaturated())
+                    return null;
+                if (System.nanoTime() - idleSince >= TimeUnit.MILLISECONDS.toNanos(idleTimeout))
+                    throw e;
+                continue;
+            }
+            if (n < 0)
+                return null;
+            buffer.position(0).limit(n);
+            if (!started) {
+                // A request is arriving, its body is read with the full timeout
+                started = true;
+                socket.setSoTimeout(idleTimeout);
             }
-            int lastSlash = uri.lastIndexOf('/');
-            if (lastSlash == -1) {
-                break;
-            } else if (lastSlash == uri.length() - 1) {
-                uri = uri.substring(0, lastSlash);
-            } else
-                uri = uri.substring(0, lastSlash + 1);
         }
-        return null;
+        return requestInfo;
     }
 
     /**
-     * Sends a 404 Not Found response to the client.
+     * Checks whether other connections are waiting for a handler.
+     * A kept-alive connection is closed in that case, so waiting clients are not starved by idle ones.
      *
-     * @param out the output stream to send the response.
-     * @throws IOException if an error occurs while writing to the output stream.
+     * @return true if new connections are waiting to be handled.
      */
-    private void sendNotFound(OutputStream out) throws IOException {
-        String response = "HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n";
-        out.write(response.getBytes());
-        out.flush();
+    private boolean isSaturated() {
+        if (limiter != null)
+            return limiter.hasQueuedThreads();
+        return executor instanceof ThreadPoolExecutor && !((ThreadPoolExecutor) executor).getQueue().isEmpty();
     }
 }
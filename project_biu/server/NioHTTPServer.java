@@ -0,0 +1,671 @@
+package server;
+
+import servlets.Servlet;
+import server.RequestParser.RequestInfo;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.*;
+
+
+/**
+ * This class represents an HTTP server built on non-blocking channels.
+ * An acceptor thread hands every new connection to one of a small set of event loops. Each event loop owns a
+ * {@link Selector} and reads requests without blocking, so idle or slow connections do not hold a thread.
+ * Complete requests are passed to a separate worker pool that runs the servlets, and the responses are written
+ * back to the clients by the event loops. Connections are kept alive between requests as the client asks, and
+ * pipelined requests are answered in order.
+ */
+public class NioHTTPServer implements HTTPServer {
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int WRITE_BUFFER_SIZE = 8192;
+    // Workers writing a response wait once this many bytes are waiting to be sent
+    private static final int MAX_PENDING_BYTES = 256 * 1024;
+
+    private final int port;
+    private final EventLoop[] loops;
+    private final ExecutorService workers;
+    private final RequestDispatcher dispatcher;
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running;
+    private volatile int idleTimeout = MyHTTPServer.DEFAULT_IDLE_TIMEOUT;
+    private volatile int maxRequests = MyHTTPServer.DEFAULT_MAX_REQUESTS;
+
+    /**
+     * Constructs a new NioHTTPServer instance.
+     *
+     * @param port     the port number on which the server will listen for incoming connections.
+     * @param nLoops   the number of event loop threads reading and writing the connections.
+     * @param nWorkers the number of threads in the worker pool that runs the servlets.
+     */
+    public NioHTTPServer(int port, int nLoops, int nWorkers) {
+        this.port = port;
+        this.loops = new EventLoop[nLoops];
+        for (int i = 0; i < nLoops; i++) {
+            loops[i] = new EventLoop();
+        }
+        this.workers = Executors.newFixedThreadPool(nWorkers);
+        this.dispatcher = new RequestDispatcher();
+        this.dispatcher.setAdmission(Math.max(1, nWorkers / 2), MyHTTPServer.DEFAULT_MAX_QUEUE_TIME);
+    }
+
+    /**
+     * Configures persistent connections.
+     *
+     * @param idleTimeout the time in milliseconds a connection may stay idle before it is closed.
+     * @param maxRequests the maximum number of requests served on one connection, 1 disables keep-alive.
+     */
+    public void setKeepAlive(int idleTimeout, int maxRequests) {
+        this.idleTimeout = idleTimeout;
+        this.maxRequests = maxRequests;
+    }
+
+    /**
+     * Adds a servlet to the server.
+     *
+     * @param httpCommand the HTTP command (GET, POST, DELETE) that the servlet will handle.
+     * @param uri         the URI pattern that the servlet will match.
+     * @param servlet     the servlet instance.
+     */
+    public void addServlet(String httpCommand, String uri, Servlet servlet) {
+        dispatcher.addServlet(httpCommand, uri, servlet);
+    }
+
+    /**
+     * Removes a servlet from the server.
+     *
+     * @param httpCommand the HTTP command (GET, POST, DELETE) that the servlet was handling.
+     * @param uri         the URI pattern that the servlet was matching.
+     */
+    public void removeServlet(String httpCommand, String uri) {
+        dispatcher.removeServlet(httpCommand, uri);
+    }
+
+    /**
+     * Marks a servlet as expensive. Only half of the workers handle expensive requests at once,
+     * so cheap requests keep being served under load.
+     *
+     * @param httpCommand the HTTP command of the servlet.
+     * @param uri         the URI pattern the servlet was registered with.
+     */
+    public void setExpensive(String httpCommand, String uri) {
+        dispatcher.setExpensive(httpCommand, uri);
+    }
+
+    /**
+     * Marks a servlet as streaming, such as an event stream. Its requests are served on a thread of their own
+     * rather than by a worker, and are not counted against the expensive requests.
+     *
+     * @param httpCommand the HTTP command of the servlet.
+     * @param uri         the URI pattern the servlet was registered with.
+     */
+    @Override
+    public void setStreaming(String httpCommand, String uri) {
+        dispatcher.setStreaming(httpCommand, uri);
+    }
+
+    /**
+     * @return the request and connection metrics of the server.
+     */
+    @Override
+    public ServerMetrics getMetrics() {
+        return dispatcher.getMetrics();
+    }
+
+    /**
+     * Accepts incoming connections and distributes them between the event loops.
+     */
+    public void run() {
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port));
+            int next = 0;
+            while (running) {
+                try {
+                    SocketChannel channel = serverChannel.accept();
+                    dispatcher.getMetrics().connectionAccepted();
+                    channel.configureBlocking(false);
+                    loops[next].register(channel);
+                    next = (next + 1) % loops.length;
+                } catch (ClosedChannelException ignored) {
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Starts the event loops and the acceptor thread.
+     */
+    @Override
+    public void start() {
+        this.running = true;
+        for (int i = 0; i < loops.length; i++) {
+            new Thread(loops[i], "nio-loop-" + i).start();
+        }
+        new Thread(this).start();
+    }
+
+    /**
+     * Stops the server by closing the server channel, stopping the event loops
+     * and shutting down the worker pool.
+     */
+    public void close() {
+        this.running = false;
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException ignored) {
+        }
+        for (EventLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+        dispatcher.closeStreams();
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(1000, TimeUnit.MILLISECONDS)) {
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Closes a channel, ignoring any error.
+     *
+     * @param channel the channel to close.
+     */
+    private static void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * An event loop that owns a selector and performs all reads and writes of its connections.
+     * Other threads pass work to the loop through {@link #execute(Runnable)}. A task or a connection that fails
+     * with an unexpected exception is logged and only its connection closed, the loop keeps serving the others.
+     */
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks;
+        private final ByteBuffer readBuffer;
+
+        EventLoop() {
+            try {
+                this.selector = Selector.open();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            this.tasks = new ConcurrentLinkedQueue<>();
+            this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        }
+
+        /**
+         * Runs a task on the loop thread.
+         *
+         * @param task the task to run.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        /**
+         * Runs a task of a connection on the loop thread. If the task fails only that connection is closed.
+         *
+         * @param connection the connection the task works on.
+         * @param task       the task to run.
+         */
+        void execute(Connection connection, Runnable task) {
+            execute(() -> {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    connection.close();
+                }
+            });
+        }
+
+        /**
+         * Registers a new connection with this loop.
+         *
+         * @param channel the non-blocking channel of the connection.
+         */
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    Connection connection = new Connection(channel, this);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (IOException e) {
+                    closeQuietly(channel);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    closeQuietly(channel);
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            long lastSweep = System.currentTimeMillis();
+            while (running) {
+                try {
+                    selector.select(1000);
+                    long now = System.currentTimeMillis();
+                    if (now - lastSweep >= 1000) {
+                        closeIdle(now);
+                        lastSweep = now;
+                    }
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        // A failing task must not end the loop, the other connections depend on it
+                        try {
+                            task.run();
+                        } catch (RuntimeException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable())
+                                connection.read(readBuffer);
+                            if (key.isValid() && key.isWritable())
+                                connection.write();
+                        } catch (IOException e) {
+                            connection.close();
+                        } catch (RuntimeException e) {
+                            // Decoding and routing run here, a bug in them costs this connection only
+                            e.printStackTrace();
+                            connection.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                ((Connection) key.attachment()).close();
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        /**
+         * Closes the connections that have waited longer than the idle timeout for a request.
+         *
+         * @param now the current time in milliseconds.
+         */
+        private void closeIdle(long now) {
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (!connection.handling && now - connection.lastActive > idleTimeout)
+                    connection.close();
+            }
+        }
+    }
+
+    /**
+     * The state of a single client connection.
+     * Reading and writing happen on the event loop, while the response is produced on a worker thread.
+     */
+    private final class Connection {
+        final SocketChannel channel;
+        final EventLoop loop;
+        SelectionKey key;
+        final RequestDecoder decoder;
+        // Bytes received after the request being handled, decoded once its response was written
+        ByteBuffer pipelined;
+        // The body being streamed to the worker, and how much of it is still to be read
+        BodyPipe bodyPipe;
+        long bodyRemaining;
+        // Set while a worker handles a request, idle connections are closed only when it is clear
+        volatile boolean handling;
+        long lastActive;
+        int served;
+        volatile boolean keepAlive;
+        // Response buffers waiting to be written, filled by the worker
+        final Queue<ByteBuffer> pending;
+        long pendingBytes;
+        volatile boolean responseComplete;
+        volatile boolean closed;
+
+        Connection(SocketChannel channel, EventLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+            this.decoder = new RequestDecoder(RequestDecoder.MAX_BUFFERED_BODY);
+            this.pending = new ConcurrentLinkedQueue<>();
+            this.lastActive = System.currentTimeMillis();
+        }
+
+        /**
+         * Reads the available bytes and hands the request to a worker once it is complete.
+         *
+         * @param readBuffer the loop's shared read buffer.
+         * @throws IOException if reading from the channel fails.
+         */
+        void read(ByteBuffer readBuffer) throws IOException {
+            readBuffer.clear();
+            int n = channel.read(readBuffer);
+            if (n < 0) {
+                close();
+                return;
+            }
+            readBuffer.flip();
+            lastActive = System.currentTimeMillis();
+            if (bodyRemaining > 0)
+                feedBody(readBuffer);
+            else
+                decode(readBuffer);
+            if (readBuffer.hasRemaining() && !closed) {
+                pipelined = ByteBuffer.allocate(readBuffer.remaining());
+                pipelined.put(readBuffer).flip();
+            }
+        }
+
+        /**
+         * Decodes received bytes and hands the request to a worker once it is complete.
+         * Bytes after a complete request are left in the buffer.
+         *
+         * @param buf the received bytes.
+         */
+        private void decode(ByteBuffer buf) {
+            RequestInfo requestInfo;
+            try {
+                requestInfo = decoder.decode(buf);
+            } catch (ProtocolException e) {
+                dispatcher.getMetrics().connectionError();
+                buf.position(buf.limit());
+                handling = true;
+                setInterest(SelectionKey.OP_READ, false);
+                workers.execute(this::rejectRequest);
+                return;
+            }
+            if (requestInfo != null) {
+                // Stop reading while the request is handled, unless its body is streamed
+                handling = true;
+                setInterest(SelectionKey.OP_READ, false);
+                if (requestInfo.isStreamed()) {
+                    bodyRemaining = requestInfo.getContentLength();
+                    bodyPipe = new BodyPipe(MAX_PENDING_BYTES, () -> loop.execute(this, this::resumeBody));
+                    requestInfo.setBodyStream(bodyPipe);
+                    feedBody(buf);
+                }
+                // A stream runs on a thread of its own, so it does not hold a worker while it is open
+                if (dispatcher.isStreaming(requestInfo)) {
+                    if (!dispatcher.startStream(() -> handle(requestInfo)))
+                        workers.execute(this::rejectStream);
+                    return;
+                }
+                long queuedAt = System.nanoTime();
+                workers.execute(() -> {
+                    dispatcher.getMetrics().recordQueueWait(System.nanoTime() - queuedAt);
+                    handle(requestInfo);
+                });
+            }
+        }
+
+        /**
+         * Passes received bytes of a streamed body to the worker.
+         * Reading pauses while the worker lags behind and stops once the body is complete.
+         *
+         * @param buf the received bytes, bytes after the body are left in it.
+         */
+        private void feedBody(ByteBuffer buf) {
+            int n = (int) Math.min(buf.remaining(), bodyRemaining);
+            boolean more = true;
+            if (n > 0) {
+                ByteBuffer chunk = ByteBuffer.allocate(n);
+                buf.get(chunk.array());
+                bodyRemaining -= n;
+                more = bodyPipe.offer(chunk);
+            }
+            if (bodyRemaining == 0)
+                bodyPipe.end();
+            setInterest(SelectionKey.OP_READ, bodyRemaining > 0 && more);
+        }
+
+        /**
+         * Resumes reading a streamed body after the worker caught up. Runs on the event loop.
+         */
+        private void resumeBody() {
+            if (!closed && bodyRemaining > 0)
+                setInterest(SelectionKey.OP_READ, true);
+        }
+
+        /**
+         * Adds or removes an operation from the operations the selector watches.
+         *
+         * @param op the operation.
+         * @param on whether the operation should be watched.
+         */
+        private void setInterest(int op, boolean on) {
+            if (closed)
+                return;
+            key.interestOps(on ? key.interestOps() | op : key.interestOps() & ~op);
+        }
+
+        /**
+         * Prepares the connection for the next request once the response was written,
+         * decoding any pipelined bytes that were already received. Runs on the event loop.
+         */
+        private void reset() {
+            responseComplete = false;
+            handling = false;
+            bodyPipe = null;
+            lastActive = System.currentTimeMillis();
+            setInterest(SelectionKey.OP_READ, true);
+            if (pipelined != null) {
+                ByteBuffer buf = pipelined;
+                decode(buf);
+                pipelined = buf.hasRemaining() ? buf : null;
+            }
+        }
+
+        /**
+         * Lets the matching servlet write the response. Runs on a worker thread, or on a stream thread for a
+         * streaming servlet.
+         *
+         * @param requestInfo the decoded request.
+         */
+        void handle(RequestInfo requestInfo) {
+            keepAlive = false;
+            try (ResponseStream out = new ResponseStream(this)) {
+                served++;
+                keepAlive = dispatcher.dispatch(requestInfo, out) && served < maxRequests && running;
+            } catch (IOException e) {
+                // A stream ends when its client goes away, which is not an error
+                if (closed)
+                    return;
+                dispatcher.getMetrics().connectionError();
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * Answers a malformed request, after which the connection is closed. Runs on a worker thread.
+         */
+        void rejectRequest() {
+            keepAlive = false;
+            try (ResponseStream out = new ResponseStream(this)) {
+                RequestDispatcher.sendBadRequest(out);
+            } catch (IOException ignored) {
+            }
+        }
+
+        /**
+         * Answers a streaming request when too many streams are open, after which the connection is closed.
+         * Runs on a worker thread.
+         */
+        void rejectStream() {
+            keepAlive = false;
+            try (ResponseStream out = new ResponseStream(this)) {
+                RequestDispatcher.sendServiceUnavailable(out, MyHTTPServer.DEFAULT_MAX_QUEUE_TIME);
+            } catch (IOException ignored) {
+            }
+        }
+
+        /**
+         * Queues a buffer of the response to be written by the event loop.
+         * Blocks while too many bytes are already waiting, so a slow client cannot make the server buffer without limit.
+         *
+         * @param buf the buffer to send, with position zero.
+         * @throws IOException if the connection was closed or the thread was interrupted while waiting.
+         */
+        void send(ByteBuffer buf) throws IOException {
+            synchronized (this) {
+                while (pendingBytes > MAX_PENDING_BYTES && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+                if (closed)
+                    throw new IOException("Connection closed");
+                pendingBytes += buf.limit();
+            }
+            pending.add(buf);
+            loop.execute(this, this::writeQuietly);
+        }
+
+        /**
+         * Marks the response as complete. Once everything was written the connection is either
+         * closed or prepared for the next request.
+         */
+        void finish() {
+            responseComplete = true;
+            loop.execute(this, this::writeQuietly);
+        }
+
+        /**
+         * Writes the pending buffers until the channel is full. Runs on the event loop.
+         *
+         * @throws IOException if writing to the channel fails.
+         */
+        void write() throws IOException {
+            if (closed)
+                return;
+            ByteBuffer buf;
+            while ((buf = pending.peek()) != null) {
+                channel.write(buf);
+                if (buf.hasRemaining()) {
+                    setInterest(SelectionKey.OP_WRITE, true);
+                    return;
+                }
+                pending.poll();
+                synchronized (this) {
+                    pendingBytes -= buf.limit();
+                    notifyAll();
+                }
+            }
+            setInterest(SelectionKey.OP_WRITE, false);
+            if (!responseComplete)
+                return;
+            // A body the servlet did not read completely cannot be skipped without reading it, so the connection is closed
+            if (keepAlive && bodyRemaining == 0)
+                reset();
+            else
+                close();
+        }
+
+        private void writeQuietly() {
+            try {
+                write();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /**
+         * Closes the connection and wakes up a worker waiting to send.
+         */
+        void close() {
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+            }
+            if (bodyPipe != null)
+                bodyPipe.fail();
+            if (key != null)
+                key.cancel();
+            closeQuietly(channel);
+        }
+    }
+
+    /**
+     * The output stream passed to the servlets. It collects the response into buffers that the event loop writes.
+     */
+    private static final class ResponseStream extends OutputStream {
+        private final Connection connection;
+        private byte[] buffer;
+        private int count;
+
+        ResponseStream(Connection connection) {
+            this.connection = connection;
+            this.buffer = new byte[WRITE_BUFFER_SIZE];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length)
+                flushBuffer();
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len >= buffer.length) {
+                flushBuffer();
+                connection.send(ByteBuffer.wrap(Arrays.copyOfRange(b, off, off + len)));
+                return;
+            }
+            if (len > buffer.length - count)
+                flushBuffer();
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            flushBuffer();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flushBuffer();
+            } finally {
+                connection.finish();
+            }
+        }
+
+        private void flushBuffer() throws IOException {
+            if (count == 0)
+                return;
+            connection.send(ByteBuffer.wrap(buffer, 0, count));
+            buffer = new byte[WRITE_BUFFER_SIZE];
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package server;
+
+/**
+ * Thrown when a servlet asks for the decoded body of a request whose body was too large to be buffered.
+ * Such a body is only read through {@link RequestParser.RequestInfo#getBodyStream()}. The dispatcher answers
+ * the request with 413 Payload Too Large if the servlet did not start its response yet.
+ */
+public class PayloadTooLargeException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    PayloadTooLargeException(long contentLength) {
+        super("The body of " + contentLength + " bytes is larger than " + RequestDecoder.MAX_BUFFERED_BODY
+                + " bytes, read it as a stream");
+    }
+}
@@ -0,0 +1,280 @@
+package server;
+
+import server.RequestParser.RequestInfo;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An incremental HTTP request parser working directly on bytes.
+ * Bytes are fed as they arrive from the connection, in any number of partial reads, and the decoder keeps its
+ * state between calls. A request is complete once its headers and the body announced by Content-Length were
+ * received. Bytes following a complete request are left in the buffer, so pipelined requests are decoded one
+ * after another.
+ * <p>
+ * Bodies larger than the configured limit are not buffered. Such a request is returned as soon as its headers
+ * are complete, and the server attaches a stream that reads the body from the connection.
+ */
+public class RequestDecoder {
+    // Requests whose request line and headers do not fit are rejected
+    static final int MAX_HEADER_SIZE = 64 * 1024;
+    // Bodies up to this size are buffered by the servers, larger ones are streamed
+    static final int MAX_BUFFERED_BODY = 64 * 1024;
+    private static final byte[] NO_BODY = new byte[0];
+    private static final String[] COMMANDS = {"GET", "POST", "DELETE"};
+    private static final String[] VERSIONS = {"HTTP/1.1", "HTTP/1.0"};
+
+    private enum State {REQUEST_LINE, HEADERS, BODY}
+
+    private final int maxBufferedBody;
+    private State state = State.REQUEST_LINE;
+    private byte[] line = new byte[256];
+    private int lineLength;
+    private int headerSize;
+    // The time spent decoding the current request, over all the calls it took
+    private long parseNanos;
+    private String httpCommand;
+    private String uri;
+    private String httpVersion;
+    private Map<String, String> headers;
+    private byte[] body;
+    private int bodyRead;
+
+    /**
+     * Constructs a new RequestDecoder that buffers every body.
+     */
+    public RequestDecoder() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Constructs a new RequestDecoder.
+     *
+     * @param maxBufferedBody the largest body that is buffered, larger bodies are left to be streamed.
+     */
+    public RequestDecoder(int maxBufferedBody) {
+        this.maxBufferedBody = maxBufferedBody;
+    }
+
+    /**
+     * Consumes bytes from the buffer until a request is complete or the buffer is empty.
+     *
+     * @param in the received bytes, its position is advanced past the consumed bytes.
+     * @return the complete request, or null if more bytes are needed.
+     * @throws ProtocolException if the request is malformed or its headers are too large.
+     */
+    public RequestInfo decode(ByteBuffer in) throws ProtocolException {
+        long start = System.nanoTime();
+        RequestInfo requestInfo = decodeBytes(in);
+        parseNanos += System.nanoTime() - start;
+        if (requestInfo != null) {
+            requestInfo.setDecodeStats(requestInfo.getHeaderLength(), parseNanos);
+            parseNanos = 0;
+        }
+        return requestInfo;
+    }
+
+    private RequestInfo decodeBytes(ByteBuffer in) throws ProtocolException {
+        while (in.hasRemaining()) {
+            if (state == State.BODY) {
+                int n = Math.min(in.remaining(), body.length - bodyRead);
+                in.get(body, bodyRead, n);
+                bodyRead += n;
+                if (bodyRead == body.length)
+                    return complete();
+                continue;
+            }
+
+            int start = in.position();
+            int end = in.limit();
+            int lf = start;
+            while (lf < end && in.get(lf) != '\n')
+                lf++;
+            appendLine(in, lf - start);
+            if (lf == end)
+                return null;
+            in.get(); // the line feed
+
+            int len = lineLength;
+            if (len > 0 && line[len - 1] == '\r')
+                len--;
+            lineLength = 0;
+            if (state == State.REQUEST_LINE) {
+                // Empty lines before a request line are ignored
+                if (len > 0) {
+                    parseRequestLine(len);
+                    state = State.HEADERS;
+                }
+            } else if (len > 0) {
+                parseHeader(len);
+            } else {
+                // After an upgrade the rest of the connection belongs to the new protocol, it is streamed as the body
+                if (RequestParser.isUpgrade(httpCommand, headers))
+                    return completeStreamed(Long.MAX_VALUE);
+                long contentLength = contentLength();
+                if (contentLength == 0)
+                    return complete();
+                if (contentLength > maxBufferedBody)
+                    return completeStreamed(contentLength);
+                body = new byte[(int) contentLength];
+                state = State.BODY;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks whether part of a request was received but not completed yet.
+     *
+     * @return true if the decoder holds a partial request.
+     */
+    public boolean isPartial() {
+        return state != State.REQUEST_LINE || lineLength > 0;
+    }
+
+    /**
+     * Copies bytes of the current line from the buffer.
+     *
+     * @param in the buffer, positioned at the bytes to copy.
+     * @param n  the number of bytes to copy.
+     * @throws ProtocolException if the headers exceed the allowed size.
+     */
+    private void appendLine(ByteBuffer in, int n) throws ProtocolException {
+        headerSize += n + 1;
+        if (headerSize > MAX_HEADER_SIZE)
+            throw new ProtocolException("Request headers too large");
+        if (lineLength + n > line.length) {
+            byte[] bigger = new byte[Math.max(line.length * 2, lineLength + n)];
+            System.arraycopy(line, 0, bigger, 0, lineLength);
+            line = bigger;
+        }
+        in.get(line, lineLength, n);
+        lineLength += n;
+    }
+
+    /**
+     * Parses the request line into the command, the URI and the protocol version.
+     *
+     * @param len the length of the line.
+     * @throws ProtocolException if the line does not have three parts.
+     */
+    private void parseRequestLine(int len) throws ProtocolException {
+        int firstSpace = indexOf((byte) ' ', 0, len);
+        int secondSpace = firstSpace == -1 ? -1 : indexOf((byte) ' ', firstSpace + 1, len);
+        if (firstSpace <= 0 || secondSpace <= firstSpace + 1 || secondSpace == len - 1)
+            throw new ProtocolException("Malformed request line");
+        httpCommand = token(0, firstSpace, COMMANDS);
+        uri = new String(line, firstSpace + 1, secondSpace - firstSpace - 1, StandardCharsets.ISO_8859_1);
+        httpVersion = token(secondSpace + 1, len, VERSIONS);
+        headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    }
+
+    /**
+     * Parses a header line into the headers map, lines without a colon are ignored.
+     *
+     * @param len the length of the line.
+     */
+    private void parseHeader(int len) {
+        int colon = indexOf((byte) ':', 0, len);
+        if (colon <= 0)
+            return;
+        int valueStart = colon + 1;
+        while (valueStart < len && (line[valueStart] == ' ' || line[valueStart] == '\t'))
+            valueStart++;
+        int valueEnd = len;
+        while (valueEnd > valueStart && (line[valueEnd - 1] == ' ' || line[valueEnd - 1] == '\t'))
+            valueEnd--;
+        String name = new String(line, 0, colon, StandardCharsets.ISO_8859_1).trim();
+        headers.put(name, new String(line, valueStart, valueEnd - valueStart, StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Reads the length of the body from the headers.
+     *
+     * @return the number of body bytes, 0 if the request has no body.
+     * @throws ProtocolException if the length is invalid or the body is chunked.
+     */
+    private long contentLength() throws ProtocolException {
+        if (headers.containsKey("Transfer-Encoding"))
+            throw new ProtocolException("Chunked request bodies are not supported");
+        String value = headers.get("Content-Length");
+        if (value == null)
+            return 0;
+        try {
+            long length = Long.parseLong(value);
+            if (length < 0)
+                throw new ProtocolException("Invalid Content-Length");
+            return length;
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("Invalid Content-Length");
+        }
+    }
+
+    /**
+     * Builds the request and prepares the decoder for the next one.
+     *
+     * @return the complete request.
+     */
+    private RequestInfo complete() {
+        RequestInfo requestInfo = new RequestInfo(httpCommand, uri, httpVersion, headers, body != null ? body : NO_BODY);
+        requestInfo.setDecodeStats(headerSize, 0);
+        clear();
+        return requestInfo;
+    }
+
+    /**
+     * Builds a request whose body is left on the connection and prepares the decoder for the next one.
+     *
+     * @param contentLength the length of the body.
+     * @return the request, still without its body.
+     */
+    private RequestInfo completeStreamed(long contentLength) {
+        RequestInfo requestInfo = new RequestInfo(httpCommand, uri, httpVersion, headers, contentLength);
+        requestInfo.setDecodeStats(headerSize, 0);
+        clear();
+        return requestInfo;
+    }
+
+    private void clear() {
+        state = State.REQUEST_LINE;
+        headerSize = 0;
+        httpCommand = null;
+        uri = null;
+        httpVersion = null;
+        headers = null;
+        body = null;
+        bodyRead = 0;
+    }
+
+    private int indexOf(byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (line[i] == b)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns one of the known tokens if the bytes match it, so common values are not allocated again.
+     *
+     * @param from  the start of the token in the line.
+     * @param to    the end of the token in the line.
+     * @param known the tokens to compare with.
+     * @return the matching known token, or a new string of the bytes.
+     */
+    private String token(int from, int to, String[] known) {
+        for (String k : known) {
+            if (k.length() != to - from)
+                continue;
+            int i = 0;
+            while (i < k.length() && line[from + i] == k.charAt(i))
+                i++;
+            if (i == k.length())
+                return k;
+        }
+        return new String(line, from, to - from, StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,319 @@
+package server;
+
+import servlets.Servlet;
+import server.RequestParser.RequestInfo;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holds the servlets registered on a server and dispatches parsed requests to them.
+ * It is shared by the server implementations, so every connection engine routes requests the same way.
+ */
+class RequestDispatcher {
+    static final int DEFAULT_MAX_STREAMS = 256;
+
+    // The registered servlets by HTTP command and URI, the source the router is compiled from
+    private final Map<String, Map<String, Servlet>> servletsMap;
+    // The URIs of the expensive servlets by HTTP command
+    private final Map<String, Set<String>> expensiveMap;
+    // The URIs of the streaming servlets by HTTP command
+    private final Map<String, Set<String>> streamingMap;
+    private volatile Router router;
+    // Bounds the expensive requests handled at once, null while all requests are admitted
+    private volatile Semaphore expensivePermits;
+    private volatile long maxWait;
+    private final ServerMetrics metrics;
+    // Streaming requests run on these threads, so they hold neither a server thread nor an admission permit
+    private final ExecutorService streams;
+    private final Semaphore streamPermits;
+
+    /**
+     * Constructs a new RequestDispatcher with empty GET, POST and DELETE tables.
+     */
+    RequestDispatcher() {
+        this.metrics = new ServerMetrics();
+        this.servletsMap = new HashMap<>();
+        this.servletsMap.put("GET", new HashMap<>());
+        this.servletsMap.put("POST", new HashMap<>());
+        this.servletsMap.put("DELETE", new HashMap<>());
+        this.expensiveMap = new HashMap<>();
+        this.streamingMap = new HashMap<>();
+        this.router = Router.compile(servletsMap, expensiveMap, streamingMap, metrics);
+        AtomicInteger streamCount = new AtomicInteger();
+        this.streams = Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "stream-" + streamCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.streamPermits = new Semaphore(DEFAULT_MAX_STREAMS);
+    }
+
+    /**
+     * @return the metrics the dispatched requests are recorded in, shared with the server.
+     */
+    ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Limits how many requests to expensive servlets are handled at the same time.
+     * The remaining threads stay free for cheap requests, such as static files. An expensive request that
+     * cannot be admitted within the maximum wait is answered with 503 Service Unavailable.
+     *
+     * @param maxExpensive the maximum number of expensive requests handled at once.
+     * @param maxWait      the time in milliseconds an expensive request may wait to be admitted.
+     */
+    void setAdmission(int maxExpensive, long maxWait) {
+        this.maxWait = maxWait;
+        this.expensivePermits = new Semaphore(maxExpensive);
+    }
+
+    /**
+     * Marks a servlet URI as expensive, see {@link #setAdmission(int, long)}.
+     *
+     * @param httpCommand the HTTP command of the servlet.
+     * @param uri         the URI pattern the servlet was registered with.
+     */
+    synchronized void setExpensive(String httpCommand, String uri) {
+        this.expensiveMap.computeIfAbsent(httpCommand.toUpperCase(), k -> new HashSet<>()).add(uri);
+        this.router = Router.compile(servletsMap, expensiveMap, streamingMap, metrics);
+    }
+
+    /**
+     * Marks a servlet URI as streaming: its responses stay open for a long time, such as an event stream or a
+     * WebSocket. The servers hand such requests to {@link #startStream(Runnable)} instead of serving them on one
+     * of their threads.
+     *
+     * @param httpCommand the HTTP command of the servlet.
+     * @param uri         the URI pattern the servlet was registered with.
+     */
+    synchronized void setStreaming(String httpCommand, String uri) {
+        this.streamingMap.computeIfAbsent(httpCommand.toUpperCase(), k -> new HashSet<>()).add(uri);
+        this.router = Router.compile(servletsMap, expensiveMap, streamingMap, metrics);
+    }
+
+    /**
+     * @param requestInfo the parsed request information.
+     * @return true if the request is routed to a streaming servlet.
+     */
+    boolean isStreaming(RequestInfo requestInfo) {
+        Router.Route route = router.match(requestInfo);
+        return route != null && route.streaming;
+    }
+
+    /**
+     * Runs a streaming request on a thread of its own. The number of open streams is bounded, the caller answers
+     * a stream that is not started with 503 Service Unavailable.
+     *
+     * @param stream dispatches the request and closes the connection once the response ended.
+     * @return true if the stream was started, false if too many streams are open.
+     */
+    boolean startStream(Runnable stream) {
+        if (!streamPermits.tryAcquire()) {
+            metrics.requestShed();
+            return false;
+        }
+        streams.execute(() -> {
+            try {
+                stream.run();
+            } finally {
+                streamPermits.release();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Interrupts the open streams, so their servlets end the responses.
+     */
+    void closeStreams() {
+        streams.shutdownNow();
+    }
+
+    /**
+     * Adds a servlet to the dispatcher.
+     * The router is recompiled and replaces the old one at once, requests in flight keep using the old one.
+     *
+     * @param httpCommand the HTTP command (GET, POST, DELETE) that the servlet will handle.
+     * @param uri         the URI pattern that the servlet will match, segments written as {name} match any segment.
+     * @param servlet     the servlet instance.
+     */
+    synchronized void addServlet(String httpCommand, String uri, Servlet servlet) {
+        this.servletsMap.computeIfAbsent(httpCommand.toUpperCase(), k -> new HashMap<>()).put(uri, servlet);
+        this.router = Router.compile(servletsMap, expensiveMap, streamingMap, metrics);
+    }
+
+    /**
+     * Removes a servlet from the dispatcher.
+     *
+     * @param httpCommand the HTTP command (GET, POST, DELETE) that the servlet was handling.
+     * @param uri         the URI pattern that the servlet was matching.
+     */
+    synchronized void removeServlet(String httpCommand, String uri) {
+        Map<String, Servlet> map = this.servletsMap.get(httpCommand.toUpperCase());
+        if (map != null && map.remove(uri) != null)
+            this.router = Router.compile(servletsMap, expensiveMap, streamingMap, metrics);
+    }
+
+    /**
+     * Finds the servlet for the request and lets it write the response through a {@link ResponseEncoder}.
+     * A 404 Not Found response is sent if the request is invalid or no servlet matches it, and a
+     * 503 Service Unavailable response if the servlet is expensive and too many expensive requests run.
+     * A 413 Payload Too Large response is sent if the servlet asks for the decoded body of a request whose body
+     * was too large to be buffered.
+     * A client waiting for "Expect: 100-continue" is told to send its body only once the request was admitted.
+     *
+     * @param requestInfo the parsed request information, or null if the request could not be parsed.
+     * @param out         the output stream to send the response.
+     * @return true if the connection can be kept open for another request.
+     * @throws IOException if an error occurs while writing to the output stream.
+     */
+    boolean dispatch(RequestInfo requestInfo, OutputStream out) throws IOException {
+        if (requestInfo == null) {
+            sendNotFound(out);
+            return false;
+        }
+        Router.Route route = router.match(requestInfo);
+        ServerMetrics.RouteMetrics routeMetrics = route != null ? route.metrics : metrics.unmatched();
+        Semaphore permits = route != null && route.expensive ? expensivePermits : null;
+        if (permits != null && !admit(permits)) {
+            // The connection is closed, so an unread body does not have to be received
+            long start = System.nanoTime();
+            sendServiceUnavailable(out, maxWait);
+            metrics.requestShed();
+            routeMetrics.record(503, requestInfo.getParseNanos(), System.nanoTime() - start,
+                    receivedBytes(requestInfo), 0, false);
+            return false;
+        }
+        ResponseEncoder encoder = new ResponseEncoder(out, requestInfo);
+        boolean failed = true;
+        int status = 0;
+        long start = System.nanoTime();
+        try {
+            if (requestInfo.hasBodyStream())
+                sendContinueIfExpected(requestInfo, out);
+            if (route != null) {
+                route.servlet.handle(requestInfo, encoder);
+            } else {
+                sendNotFound(encoder);
+            }
+            encoder.finish();
+            failed = false;
+            return requestInfo.isKeepAlive() && encoder.isReusable();
+        } catch (PayloadTooLargeException e) {
+            // The servlet asked for a body that is not buffered. Unless its response started it can be refused,
+            // either way the connection is closed rather than receiving the rest of the body.
+            if (encoder.getBytesWritten() == 0) {
+                sendPayloadTooLarge(out);
+                status = 413;
+                failed = false;
+            }
+            return false;
+        } finally {
+            if (permits != null)
+                permits.release();
+            routeMetrics.record(status != 0 ? status : encoder.getStatus(), requestInfo.getParseNanos(),
+                    System.nanoTime() - start, receivedBytes(requestInfo), encoder.getBytesWritten(), failed);
+        }
+    }
+
+    /**
+     * Counts the bytes received for a request: its headers and what was read of its body. The body of an upgrade
+     * request is the traffic of the new protocol, which is not counted.
+     *
+     * @param requestInfo the dispatched request.
+     * @return the number of bytes.
+     */
+    private static long receivedBytes(RequestInfo requestInfo) {
+        long received = requestInfo.getHeaderLength();
+        if (!requestInfo.isUpgrade())
+            received += requestInfo.getBodyBytesRead();
+        return received;
+    }
+
+    private boolean admit(Semaphore permits) {
+        try {
+            return permits.tryAcquire(maxWait, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Tells a client that waits with its body for "Expect: 100-continue" to send it.
+     * Only requests with a body stream are dispatched before their body arrived.
+     *
+     * @param requestInfo the request whose body is about to be read.
+     * @param out         the output stream to send the interim response.
+     * @throws IOException if an error occurs while writing to the output stream.
+     */
+    private static void sendContinueIfExpected(RequestInfo requestInfo, OutputStream out) throws IOException {
+        if ("100-continue".equalsIgnoreCase(requestInfo.getHeader("Expect"))) {
+            out.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes());
+            out.flush();
+        }
+    }
+
+    /**
+     * Sends a 404 Not Found response to the client.
+     *
+     * @param out the output stream to send the response.
+     * @throws IOException if an error occurs while writing to the output stream.
+     */
+    static void sendNotFound(OutputStream out) throws IOException {
+        String response = "HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n";
+        out.write(response.getBytes());
+        out.flush();
+    }
+
+    /**
+     * Sends a 503 Service Unavailable response to the client, used when the server is too busy for the request.
+     * The connection is closed after it.
+     *
+     * @param out     the output stream to send the response.
+     * @param retryIn the time in milliseconds after which the client may retry.
+     * @throws IOException if an error occurs while writing to the output stream.
+     */
+    static void sendServiceUnavailable(OutputStream out, long retryIn) throws IOException {
+        String response = "HTTP/1.1 503 Service Unavailable\r\nRetry-After: " + Math.max(1, (retryIn + 999) / 1000) +
+                "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n";
+        out.write(response.getBytes());
+        out.flush();
+    }
+
+    /**
+     * Sends a 413 Payload Too Large response to the client, used when a servlet asks for the decoded body of a
+     * request whose body was not buffered. The connection is closed after it.
+     *
+     * @param out the output stream to send the response.
+     * @throws IOException if an error occurs while writing to the output stream.
+     */
+    static void sendPayloadTooLarge(OutputStream out) throws IOException {
+        String response = "HTTP/1.1 413 Payload Too Large\r\nContent-Length: 0\r\nConnection: close\r\n\r\n";
+        out.write(response.getBytes());
+        out.flush();
+    }
+
+    /**
+     * Sends a 400 Bad Request response to the client, used when a request could not be decoded.
+     *
+     * @param out the output stream to send the response.
+     * @throws IOException if an error occurs while writing to the output stream.
+     */
+    static void sendBadRequest(OutputStream out) throws IOException {
+        String response = "HTTP/1.1 400 Bad Request\r\nContent-Length: 0\r\nConnection: close\r\n\r\n";
+        out.write(response.getBytes());
+        out.flush();
+    }
+}
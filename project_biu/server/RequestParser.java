@@ -1,15 +1,27 @@
 package server;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.CharArrayReader;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
 
 public class RequestParser {
 
     /**
      * Parses an HTTP request from a BufferedReader and extracts relevant information.
+     * The servers read requests with the byte based {@link RequestDecoder} instead.
+     * Exactly the body announced by Content-Length is consumed, so further requests can be parsed from the same reader.
+     * The reader should decode ISO-8859-1, which keeps the body bytes intact.
      *
      * @param reader A BufferedReader containing the HTTP request.
      * @return A RequestInfo object containing the parsed request information, or null if the request is invalid.
@@ -51,19 +63,38 @@ public class RequestParser {
             }
         }
 
-        // read until empty line
-        while (reader.ready()) {
-            line = reader.readLine();
-            if (line.isEmpty())
-                break;
+        // Read the headers until the empty line
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        while ((line = reader.readLine()) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0)
+                headers.put(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
             if (line.contains("boundary=")) {
                 boundary = line.split("boundary=")[1];
             }
         }
+        if (line == null)
+            return null;
+
+        // Read exactly Content-Length characters of body, so the next request on the connection stays intact
+        int contentLength = 0;
+        try {
+            contentLength = Integer.parseInt(headers.getOrDefault("Content-Length", "0"));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        char[] body = new char[Math.max(contentLength, 0)];
+        int read = 0;
+        while (read < body.length) {
+            int n = reader.read(body, read, body.length - read);
+            if (n < 0)
+                return null;
+            read += n;
+        }
+        BufferedReader bodyReader = new BufferedReader(new CharArrayReader(body));
 
         // read until empty line
-        while (reader.ready()) {
-            line = reader.readLine();
+        while ((line = bodyReader.readLine()) != null) {
             if (line.isEmpty())
                 break;
             if (line.contains("filename=")){
@@ -78,8 +109,7 @@ public class RequestParser {
 
         // Read content after the second empty line
         StringBuilder contentBuilder = new StringBuilder();
-        while (reader.ready()) {
-            line = reader.readLine();
+        while ((line = bodyReader.readLine()) != null) {
             if (!boundary.isEmpty() && line.contains(boundary))
                 break;
 
@@ -87,20 +117,182 @@ public class RequestParser {
         }
         if(!contentBuilder.isEmpty())
             contentBuilder.deleteCharAt(contentBuilder.length() - 1);
-        content = contentBuilder.toString().getBytes();
+        content = contentBuilder.toString().getBytes(StandardCharsets.ISO_8859_1);
+
+        return new RequestInfo(httpCommand, uri, requestLineParts[2], uriSegments, parameters, headers, content);
+    }
+
+    /**
+     * Splits the path of a URI into its non-empty segments, ignoring the query string.
+     *
+     * @param uri the URI of the request.
+     * @return the segments of the URI path.
+     */
+    static String[] splitPath(String uri) {
+        int end = uri.indexOf('?');
+        if (end == -1)
+            end = uri.length();
+        int count = 0;
+        for (int i = 0; i < end; i++) {
+            if (uri.charAt(i) != '/' && (i == 0 || uri.charAt(i - 1) == '/'))
+                count++;
+        }
+        String[] segments = new String[count];
+        int n = 0;
+        int start = -1;
+        for (int i = 0; i <= end; i++) {
+            boolean separator = i == end || uri.charAt(i) == '/';
+            if (separator && start != -1) {
+                segments[n++] = uri.substring(start, i);
+                start = -1;
+            } else if (!separator && start == -1) {
+                start = i;
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Adds the parameters of the query string of a URI.
+     * Only pairs with exactly one '=' and a non-empty value are kept.
+     *
+     * @param uri        the URI of the request.
+     * @param parameters the map the parameters are added to.
+     */
+    static void parseQuery(String uri, Map<String, String> parameters) {
+        int start = uri.indexOf('?');
+        if (start == -1)
+            return;
+        start++;
+        while (start <= uri.length()) {
+            int end = uri.indexOf('&', start);
+            if (end == -1)
+                end = uri.length();
+            int eq = uri.indexOf('=', start);
+            if (eq != -1 && eq < end - 1) {
+                int second = uri.indexOf('=', eq + 1);
+                if (second == -1 || second >= end)
+                    parameters.put(uri.substring(start, eq), uri.substring(eq + 1, end));
+            }
+            start = end + 1;
+        }
+    }
+
+    /**
+     * Reads the form lines or multipart part headers at the start of a body into the parameters
+     * and returns the content that follows them.
+     * For multipart bodies the content ends before the line holding the boundary.
+     *
+     * @param body       the raw body bytes.
+     * @param boundary   the multipart boundary, or null if the body is not multipart.
+     * @param parameters the map the parameters are added to.
+     * @return the content of the body.
+     */
+    static byte[] parseBody(byte[] body, String boundary, Map<String, String> parameters) {
+        int pos = 0;
+        while (pos < body.length) {
+            int lf = indexOf(body, (byte) '\n', pos);
+            int next = lf == -1 ? body.length : lf + 1;
+            int lineEnd = lf == -1 ? body.length : lf;
+            if (lineEnd > pos && body[lineEnd - 1] == '\r')
+                lineEnd--;
+            if (lineEnd == pos) {
+                pos = next;
+                break;
+            }
+            String line = new String(body, pos, lineEnd - pos, StandardCharsets.ISO_8859_1);
+            pos = next;
+            int filename = line.indexOf("filename=");
+            if (filename != -1) {
+                parameters.put("filename", line.substring(filename + 9).replace("\"", ""));
+                continue;
+            }
+            int eq = line.indexOf('=');
+            if (eq != -1 && eq < line.length() - 1 && line.indexOf('=', eq + 1) == -1)
+                parameters.put(line.substring(0, eq), line.substring(eq + 1));
+        }
+
+        int contentEnd = body.length;
+        if (boundary != null) {
+            int found = indexOf(body, boundary.getBytes(StandardCharsets.ISO_8859_1), pos);
+            if (found != -1) {
+                // The content ends at the line break before the boundary line
+                contentEnd = found;
+                while (contentEnd > pos && body[contentEnd - 1] != '\n')
+                    contentEnd--;
+                if (contentEnd > pos)
+                    contentEnd--;
+                if (contentEnd > pos && body[contentEnd - 1] == '\r')
+                    contentEnd--;
+            }
+        }
+        return Arrays.copyOfRange(body, pos, contentEnd);
+    }
+
+    /**
+     * Checks whether a request asks to switch the connection to another protocol, such as WebSocket.
+     *
+     * @param httpCommand the HTTP command of the request.
+     * @param headers     the headers of the request.
+     * @return true for a GET request with an Upgrade header and "upgrade" among its Connection options.
+     */
+    static boolean isUpgrade(String httpCommand, Map<String, String> headers) {
+        if (!"GET".equals(httpCommand) || headers.get("Upgrade") == null)
+            return false;
+        String connection = headers.get("Connection");
+        if (connection == null)
+            return false;
+        for (String option : connection.split(",")) {
+            if (option.trim().equalsIgnoreCase("upgrade"))
+                return true;
+        }
+        return false;
+    }
 
-        return new RequestInfo(httpCommand, uri, uriSegments, parameters, content);
+    static int indexOf(byte[] bytes, byte b, int from) {
+        for (int i = from; i < bytes.length; i++) {
+            if (bytes[i] == b)
+                return i;
+        }
+        return -1;
+    }
+
+    static int indexOf(byte[] bytes, byte[] pattern, int from) {
+        outer:
+        for (int i = from; i <= bytes.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (bytes[i + j] != pattern[j])
+                    continue outer;
+            }
+            return i;
+        }
+        return -1;
     }
 
     /**
      * A class representing parsed information from an HTTP request.
+     * Requests produced by {@link RequestDecoder} keep the raw body and decode the URI segments,
+     * the parameters and the content only when they are first asked for.
+     * Large bodies are not buffered at all, servlets read them through {@link #getBodyStream()}.
      */
     public static class RequestInfo {
         private final String httpCommand;
         private final String uri;
-        private final String[] uriSegments;
-        private final Map<String, String> parameters;
-        private final byte[] content;
+        private final String httpVersion;
+        private final Map<String, String> headers;
+        // The raw body, decoded into parameters and content on first access
+        private final byte[] body;
+        private final long contentLength;
+        // Reads a body that was not buffered from the connection
+        private InputStream bodyStream;
+        private String[] uriSegments;
+        private Map<String, String> parameters;
+        // The values of the {name} segments of the matched servlet URI
+        private Map<String, String> pathParameters = Collections.emptyMap();
+        private byte[] content;
+        // Recorded by the decoder for the server metrics
+        private int headerLength;
+        private long parseNanos;
 
         /**
          * Constructs a new RequestInfo object.
@@ -112,11 +304,67 @@ public class RequestParser {
          * @param content     The content of the request, if any.
          */
         public RequestInfo(String httpCommand, String uri, String[] uriSegments, Map<String, String> parameters, byte[] content) {
+            this(httpCommand, uri, "HTTP/1.0", uriSegments, parameters, Collections.emptyMap(), content);
+        }
+
+        /**
+         * Constructs a new RequestInfo object including the protocol version and the headers.
+         *
+         * @param httpCommand The HTTP command (e.g., GET, POST).
+         * @param uri         The full URI of the request.
+         * @param httpVersion The protocol version of the request line (e.g., HTTP/1.1).
+         * @param uriSegments The segments of the URI path.
+         * @param parameters  The parameters extracted from the URI or request body.
+         * @param headers     The request headers, looked up case-insensitively.
+         * @param content     The content of the request, if any.
+         */
+        public RequestInfo(String httpCommand, String uri, String httpVersion, String[] uriSegments,
+                           Map<String, String> parameters, Map<String, String> headers, byte[] content) {
             this.httpCommand = httpCommand;
             this.uri = uri;
+            this.httpVersion = httpVersion;
             this.uriSegments = uriSegments;
             this.parameters = parameters;
+            this.headers = headers;
             this.content = content;
+            this.body = null;
+            this.contentLength = content != null ? content.length : 0;
+        }
+
+        /**
+         * Constructs a new RequestInfo object that decodes its URI and body lazily.
+         *
+         * @param httpCommand The HTTP command (e.g., GET, POST).
+         * @param uri         The full URI of the request.
+         * @param httpVersion The protocol version of the request line (e.g., HTTP/1.1).
+         * @param headers     The request headers, looked up case-insensitively.
+         * @param body        The raw body of the request, empty if there is none.
+         */
+        public RequestInfo(String httpCommand, String uri, String httpVersion, Map<String, String> headers, byte[] body) {
+            this.httpCommand = httpCommand;
+            this.uri = uri;
+            this.httpVersion = httpVersion;
+            this.headers = headers;
+            this.body = body;
+            this.contentLength = body.length;
+        }
+
+        /**
+         * Constructs a new RequestInfo object whose body is read from the connection by the servlet.
+         *
+         * @param httpCommand   The HTTP command (e.g., GET, POST).
+         * @param uri           The full URI of the request.
+         * @param httpVersion   The protocol version of the request line (e.g., HTTP/1.1).
+         * @param headers       The request headers, looked up case-insensitively.
+         * @param contentLength The length of the body.
+         */
+        RequestInfo(String httpCommand, String uri, String httpVersion, Map<String, String> headers, long contentLength) {
+            this.httpCommand = httpCommand;
+            this.uri = uri;
+            this.httpVersion = httpVersion;
+            this.headers = headers;
+            this.body = null;
+            this.contentLength = contentLength;
         }
 
         public String getHttpCommand() {
@@ -127,16 +375,238 @@ public class RequestParser {
             return uri;
         }
 
+        public String getHttpVersion() {
+            return httpVersion;
+        }
+
         public String[] getUriSegments() {
+            if (uriSegments == null)
+                uriSegments = splitPath(uri);
             return uriSegments;
         }
 
+        /**
+         * Returns the parameters of the query string and of a form body.
+         * A body too large to be buffered is not read for them: the parameters of such a request are those of
+         * the query string, unless the body is a form, whose parameters cannot be had without buffering it.
+         *
+         * @return the parameters by name.
+         * @throws PayloadTooLargeException if the body is a form that was too large to be buffered.
+         */
         public Map<String, String> getParameters() {
+            if (parameters == null) {
+                if (hasLargeBody()) {
+                    if (isForm())
+                        throw new PayloadTooLargeException(contentLength);
+                    Map<String, String> query = new HashMap<>();
+                    parseQuery(uri, query);
+                    parameters = query;
+                } else {
+                    decodeParameters();
+                }
+            }
             return parameters;
         }
 
+        /**
+         * Returns the path parameters of the request, the segments that matched {@code {name}} segments
+         * of the URI the servlet was registered for.
+         *
+         * @return the path parameters by name, empty if the servlet URI has none.
+         */
+        public Map<String, String> getPathParameters() {
+            return pathParameters;
+        }
+
+        public Map<String, String> getHeaders() {
+            return headers;
+        }
+
+        public String getHeader(String name) {
+            return headers.get(name);
+        }
+
+        /**
+         * Returns the body after its form lines or part headers.
+         *
+         * @return the content, empty if there is no body.
+         * @throws PayloadTooLargeException if the body was too large to be buffered, read it through
+         *                                  {@link #getBodyStream()} instead.
+         */
         public byte[] getContent() {
+            if (content == null) {
+                if (hasLargeBody())
+                    throw new PayloadTooLargeException(contentLength);
+                decodeParameters();
+            }
             return content;
         }
+
+        public long getContentLength() {
+            return contentLength;
+        }
+
+        /**
+         * Returns the raw body of the request as a stream.
+         * For large bodies this reads straight from the connection, so the body can be processed
+         * with a fixed-size buffer. It can be read only once.
+         *
+         * @return the body stream.
+         */
+        public InputStream getBodyStream() {
+            if (bodyStream != null)
+                return bodyStream;
+            if (body != null)
+                return new ByteArrayInputStream(body);
+            return new ByteArrayInputStream(content != null ? content : new byte[0]);
+        }
+
+        /**
+         * Returns the raw body of the request as a channel, see {@link #getBodyStream()}.
+         *
+         * @return the body channel.
+         */
+        public ReadableByteChannel getBodyChannel() {
+            return Channels.newChannel(getBodyStream());
+        }
+
+        /**
+         * @return true if the body was not buffered and has to be read from the connection.
+         */
+        boolean isStreamed() {
+            return body == null && bodyStream == null && content == null && contentLength > 0;
+        }
+
+        /**
+         * @return true if the body is read from the connection through the body stream set by the server.
+         */
+        boolean hasBodyStream() {
+            return bodyStream != null;
+        }
+
+        void setBodyStream(InputStream bodyStream) {
+            this.bodyStream = new CountingInputStream(bodyStream);
+        }
+
+        /**
+         * @return the bytes of the body received so far: all of a buffered body, what was read of a streamed one.
+         */
+        long getBodyBytesRead() {
+            if (bodyStream != null)
+                return ((CountingInputStream) bodyStream).count;
+            return isStreamed() ? 0 : contentLength;
+        }
+
+        void setPathParameters(Map<String, String> pathParameters) {
+            this.pathParameters = pathParameters;
+        }
+
+        /**
+         * @return the size of the request line and headers in bytes, 0 if the request was not decoded from bytes.
+         */
+        int getHeaderLength() {
+            return headerLength;
+        }
+
+        /**
+         * @return the time the decoder spent on the request, not counting the time waiting for its bytes.
+         */
+        long getParseNanos() {
+            return parseNanos;
+        }
+
+        void setDecodeStats(int headerLength, long parseNanos) {
+            this.headerLength = headerLength;
+            this.parseNanos = parseNanos;
+        }
+
+        /**
+         * @return true if the body was too large to be buffered and is only read through the body stream.
+         */
+        private boolean hasLargeBody() {
+            return body == null && content == null && contentLength > 0;
+        }
+
+        /**
+         * @return true if the body holds form fields, url-encoded or multipart.
+         */
+        private boolean isForm() {
+            String contentType = headers.get("Content-Type");
+            return contentType != null && (contentType.startsWith("application/x-www-form-urlencoded")
+                    || MultipartReader.boundary(contentType) != null);
+        }
+
+        /**
+         * Decodes the query string and the buffered body into the parameters and the content.
+         */
+        private void decodeParameters() {
+            Map<String, String> decoded = new HashMap<>();
+            parseQuery(uri, decoded);
+            byte[] raw = body != null ? body : new byte[0];
+            content = parseBody(raw, MultipartReader.boundary(headers.get("Content-Type")), decoded);
+            parameters = decoded;
+        }
+
+        /**
+         * Checks whether the request asks to switch the connection to another protocol.
+         * The rest of the connection is then the body of the request, read through {@link #getBodyStream()}.
+         *
+         * @return {@code true} for an upgrade request.
+         */
+        public boolean isUpgrade() {
+            return RequestParser.isUpgrade(httpCommand, headers);
+        }
+
+        /**
+         * Checks whether the client wants to keep the connection open after this request.
+         * HTTP/1.1 connections are persistent unless the client sends "Connection: close",
+         * HTTP/1.0 connections only when the client sends "Connection: keep-alive".
+         *
+         * An upgraded connection is never reused, it belongs to the new protocol.
+         *
+         * @return {@code true} if the connection may be reused for another request.
+         */
+        public boolean isKeepAlive() {
+            if (isUpgrade())
+                return false;
+            String connection = headers.get("Connection");
+            if ("HTTP/1.1".equals(httpVersion))
+                return connection == null || !connection.equalsIgnoreCase("close");
+            return connection != null && connection.equalsIgnoreCase("keep-alive");
+        }
+
+        /**
+         * Counts the bytes read from a body stream, for the server metrics.
+         */
+        private static final class CountingInputStream extends FilterInputStream {
+            long count;
+
+            CountingInputStream(InputStream in) {
+                super(in);
+            }
+
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0)
+                    count++;
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0)
+                    count += n;
+                return n;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                long skipped = super.skip(n);
+                count += skipped;
+                return skipped;
+            }
+        }
     }
 }
@@ -0,0 +1,453 @@
+package server;
+
+import server.RequestParser.RequestInfo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The output stream a servlet writes its response to.
+ * It reads the status line and headers the servlet writes and, when the client accepts it, compresses the body
+ * with gzip or deflate while it is written. Compressed bodies and bodies sent without a Content-Length are
+ * framed with chunked transfer encoding, so the connection can be kept alive. Small bodies, bodies that are
+ * already encoded, such as the precompressed files of {@code HtmlLoader}, and event streams are passed through.
+ */
+public class ResponseEncoder extends OutputStream {
+    /**
+     * The size below which a body is not worth compressing.
+     */
+    public static final int MIN_COMPRESS_SIZE = 1024;
+    private static final int MAX_HEADER_SIZE = 64 * 1024;
+    private static final int CHUNK_SIZE = 8192;
+    private static final byte[] HEADER_END = {'\r', '\n', '\r', '\n'};
+
+    private enum State {HEADERS, PASS, PENDING, ENCODE, FINISHED, BROKEN}
+
+    private final CountingOutputStream out;
+    private final RequestInfo requestInfo;
+    private final String encoding;
+    private State state = State.HEADERS;
+    // The header section while it is collected, then the start of a body that may still be too small to compress
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream(512);
+    private List<String> headerLines;
+    private OutputStream body;
+    private boolean reusable = true;
+    private int status;
+
+    /**
+     * Constructs a new ResponseEncoder.
+     *
+     * @param out         the output stream of the connection.
+     * @param requestInfo the request being answered.
+     */
+    ResponseEncoder(OutputStream out, RequestInfo requestInfo) {
+        this.out = new CountingOutputStream(out);
+        this.requestInfo = requestInfo;
+        this.encoding = negotiate(requestInfo.getHeader("Accept-Encoding"));
+    }
+
+    /**
+     * Chooses the content encoding for a request.
+     *
+     * @param acceptEncoding the Accept-Encoding header of the request, may be null.
+     * @return "gzip", "deflate", or null if the client accepts neither.
+     */
+    public static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null)
+            return null;
+        boolean gzip = false;
+        boolean deflate = false;
+        for (String token : acceptEncoding.split(",")) {
+            String[] parts = token.split(";");
+            String name = parts[0].trim().toLowerCase(Locale.ROOT);
+            boolean accepted = true;
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        accepted = Double.parseDouble(param.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        accepted = false;
+                    }
+                }
+            }
+            if (name.equals("gzip") || name.equals("*"))
+                gzip |= accepted;
+            else if (name.equals("deflate"))
+                deflate |= accepted;
+        }
+        return gzip ? "gzip" : deflate ? "deflate" : null;
+    }
+
+    /**
+     * Checks whether a content type is worth compressing.
+     *
+     * @param contentType the value of the Content-Type header, may be null.
+     * @return true for text and other textual formats, false for binary formats and event streams.
+     */
+    public static boolean isCompressible(String contentType) {
+        if (contentType == null)
+            return false;
+        String type = contentType.toLowerCase(Locale.ROOT);
+        if (type.startsWith("text/event-stream"))
+            return false;
+        return type.startsWith("text/") || type.contains("javascript") || type.contains("json")
+                || type.contains("xml") || type.contains("svg");
+    }
+
+    /**
+     * @return false if the response could not be framed and the connection has to be closed after it.
+     */
+    boolean isReusable() {
+        return reusable;
+    }
+
+    /**
+     * @return the status code of the response, 0 until its status line was written.
+     */
+    int getStatus() {
+        return status;
+    }
+
+    /**
+     * @return the number of bytes sent to the connection, headers and framing included.
+     */
+    long getBytesWritten() {
+        return out.count;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        try {
+            encode(b, off, len);
+        } catch (IOException e) {
+            broken();
+            throw e;
+        }
+    }
+
+    private void encode(byte[] b, int off, int len) throws IOException {
+        switch (state) {
+            case HEADERS:
+                collectHeaders(b, off, len);
+                break;
+            case PENDING:
+                pending.write(b, off, len);
+                if (pending.size() >= MIN_COMPRESS_SIZE)
+                    startEncoding(true);
+                break;
+            case PASS:
+                out.write(b, off, len);
+                break;
+            case ENCODE:
+                body.write(b, off, len);
+                break;
+            case BROKEN:
+                throw new IOException("Connection closed");
+            default:
+                throw new IOException("Response already finished");
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        try {
+            if (state == State.PENDING)
+                startEncoding(true);
+            if (state == State.ENCODE)
+                body.flush();
+            out.flush();
+        } catch (IOException e) {
+            broken();
+            throw e;
+        }
+    }
+
+    /**
+     * Remembers that writing to the connection failed, so the response is not finished on it.
+     */
+    private void broken() {
+        state = State.BROKEN;
+        reusable = false;
+    }
+
+    /**
+     * Ends the response, writing what is buffered and the end of the encoded body.
+     * It does not close the connection.
+     *
+     * @throws IOException if an error occurs while writing to the output stream.
+     */
+    void finish() throws IOException {
+        if (state == State.BROKEN)
+            return;
+        switch (state) {
+            case HEADERS:
+                // Not a response this layer understands, it is sent as it was written
+                pending.writeTo(out);
+                reusable = false;
+                break;
+            case PENDING:
+                // The body ended before it was worth compressing
+                headerLines.add("Content-Length: " + pending.size());
+                writeHeaders();
+                pending.writeTo(out);
+                break;
+            case ENCODE:
+                body.close();
+                break;
+            default:
+                break;
+        }
+        state = State.FINISHED;
+        pending = null;
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (state != State.FINISHED && state != State.BROKEN)
+            finish();
+    }
+
+    /**
+     * Buffers the header section until it is complete, then decides how the body is sent.
+     */
+    private void collectHeaders(byte[] b, int off, int len) throws IOException {
+        int scanFrom = Math.max(0, pending.size() - HEADER_END.length + 1);
+        pending.write(b, off, len);
+        byte[] buf = pending.toByteArray();
+        int end = indexOf(buf, scanFrom);
+        if (end == -1) {
+            if (buf.length > MAX_HEADER_SIZE) {
+                state = State.PASS;
+                reusable = false;
+                out.write(buf);
+            }
+            return;
+        }
+        int bodyStart = end + HEADER_END.length;
+        headerLines = new ArrayList<>(List.of(new String(buf, 0, end, StandardCharsets.ISO_8859_1).split("\r\n")));
+        pending = new ByteArrayOutputStream();
+        chooseFraming();
+        if (bodyStart < buf.length)
+            write(buf, bodyStart, buf.length - bodyStart);
+    }
+
+    private void chooseFraming() throws IOException {
+        String statusLine = headerLines.get(0);
+        int status = parseStatus(statusLine);
+        this.status = Math.max(0, status);
+        boolean http11 = "HTTP/1.1".equals(requestInfo.getHttpVersion());
+        boolean hasBody = status >= 200 && status != 204 && status != 304
+                && !"HEAD".equalsIgnoreCase(requestInfo.getHttpCommand());
+        String contentLength = header("Content-Length");
+        boolean encoded = header("Content-Encoding") != null || header("Transfer-Encoding") != null;
+        boolean compress = encoding != null && hasBody && !encoded && isCompressible(header("Content-Type"));
+
+        if (!hasBody || encoded || status < 0) {
+            passThrough();
+        } else if (contentLength != null) {
+            if (compress && http11 && parseLength(contentLength) >= MIN_COMPRESS_SIZE) {
+                removeHeader("Content-Length");
+                startEncoding(true);
+            } else {
+                passThrough();
+            }
+        } else if (!http11) {
+            // Without chunked encoding the end of the body can only be told by closing the connection
+            reusable = false;
+            removeHeader("Connection");
+            headerLines.add("Connection: close");
+            passThrough();
+        } else if (compress) {
+            state = State.PENDING;
+        } else {
+            startEncoding(false);
+        }
+    }
+
+    private void passThrough() throws IOException {
+        writeHeaders();
+        state = State.PASS;
+    }
+
+    /**
+     * Sends the headers for a chunked body and routes the body through the encoder.
+     *
+     * @param compress whether the body is compressed.
+     */
+    private void startEncoding(boolean compress) throws IOException {
+        OutputStream chunked = new ChunkedOutputStream(out);
+        if (compress) {
+            headerLines.add("Content-Encoding: " + encoding);
+            if (header("Vary") == null)
+                headerLines.add("Vary: Accept-Encoding");
+            body = encoding.equals("gzip") ? new GZIPOutputStream(chunked, CHUNK_SIZE, true)
+                    : new DeflaterOutputStream(chunked, new Deflater(), CHUNK_SIZE, true);
+        } else {
+            body = chunked;
+        }
+        headerLines.add("Transfer-Encoding: chunked");
+        writeHeaders();
+        state = State.ENCODE;
+        if (pending.size() > 0) {
+            pending.writeTo(body);
+            pending.reset();
+        }
+    }
+
+    private void writeHeaders() throws IOException {
+        StringBuilder header = new StringBuilder();
+        for (String line : headerLines) {
+            header.append(line).append("\r\n");
+        }
+        header.append("\r\n");
+        out.write(header.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private String header(String name) {
+        for (int i = 1; i < headerLines.size(); i++) {
+            String line = headerLines.get(i);
+            int colon = line.indexOf(':');
+            if (colon == name.length() && line.regionMatches(true, 0, name, 0, colon))
+                return line.substring(colon + 1).trim();
+        }
+        return null;
+    }
+
+    private void removeHeader(String name) {
+        headerLines.removeIf(line -> line.indexOf(':') == name.length() && line.regionMatches(true, 0, name, 0, name.length()));
+    }
+
+    private static int parseStatus(String statusLine) {
+        String[] parts = statusLine.split(" ");
+        try {
+            return parts.length > 1 && parts[0].startsWith("HTTP/") ? Integer.parseInt(parts[1]) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static long parseLength(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static int indexOf(byte[] buf, int from) {
+        outer:
+        for (int i = from; i <= buf.length - HEADER_END.length; i++) {
+            for (int j = 0; j < HEADER_END.length; j++) {
+                if (buf[i + j] != HEADER_END[j])
+                    continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Counts the bytes written to the connection.
+     */
+    private static class CountingOutputStream extends OutputStream {
+        private final OutputStream out;
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes a body with chunked transfer encoding.
+     * Closing it writes the last chunk, the connection itself stays open.
+     */
+    private static class ChunkedOutputStream extends OutputStream {
+        private final OutputStream out;
+        private final byte[] buf = new byte[CHUNK_SIZE];
+        private int count;
+
+        ChunkedOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buf.length)
+                writeChunk();
+            buf[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == buf.length)
+                    writeChunk();
+                int n = Math.min(len, buf.length - count);
+                System.arraycopy(b, off, buf, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            writeChunk();
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            writeChunk();
+            out.write("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        }
+
+        private void writeChunk() throws IOException {
+            if (count == 0)
+                return;
+            out.write((Integer.toHexString(count) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.write(buf, 0, count);
+            out.write('\r');
+            out.write('\n');
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package server;
+
+import servlets.Servlet;
+import server.RequestParser.RequestInfo;
+
+import java.util.*;
+
+/**
+ * An immutable routing table compiled from the registered servlets.
+ * Each HTTP command has a trie of URI segments, and a request is routed to the servlet registered for the
+ * longest prefix of its path. Walking the trie compares the segments in place, so dispatching does not
+ * allocate and its cost depends on the depth of the path rather than on the number of servlets.
+ * <p>
+ * A URI registered without a trailing slash matches the path itself and everything below it, a URI with a
+ * trailing slash only what is below it. A segment written as {@code {name}} matches any single segment and
+ * its value is passed to the servlet as a path parameter; literal segments take precedence over parameters.
+ */
+final class Router {
+    private final Map<String, Node> roots;
+
+    private Router(Map<String, Node> roots) {
+        this.roots = roots;
+    }
+
+    /**
+     * Compiles a routing table.
+     *
+     * @param servlets  the registered servlets by HTTP command and URI.
+     * @param expensive the URIs of the expensive servlets by HTTP command.
+     * @param streaming the URIs of the streaming servlets by HTTP command.
+     * @param metrics   the metrics the routes record their requests in.
+     * @return the new routing table.
+     */
+    static Router compile(Map<String, Map<String, Servlet>> servlets, Map<String, Set<String>> expensive,
+                          Map<String, Set<String>> streaming, ServerMetrics metrics) {
+        Map<String, Node> roots = new HashMap<>();
+        for (Map.Entry<String, Map<String, Servlet>> command : servlets.entrySet()) {
+            NodeBuilder root = new NodeBuilder();
+            Set<String> expensiveUris = expensive.getOrDefault(command.getKey(), Collections.emptySet());
+            Set<String> streamingUris = streaming.getOrDefault(command.getKey(), Collections.emptySet());
+            for (Map.Entry<String, Servlet> entry : command.getValue().entrySet()) {
+                root.add(entry.getKey(), entry.getValue(), expensiveUris.contains(entry.getKey()),
+                        streamingUris.contains(entry.getKey()), metrics.route(command.getKey(), entry.getKey()));
+            }
+            roots.put(command.getKey(), root.build());
+        }
+        return new Router(roots);
+    }
+
+    /**
+     * Finds the route of a request and passes the values of its path parameters to the request.
+     *
+     * @param requestInfo the parsed request information.
+     * @return the matching route, or null if no servlet matches the request.
+     */
+    Route match(RequestInfo requestInfo) {
+        Node node = roots.get(requestInfo.getHttpCommand());
+        if (node == null)
+            node = roots.get(requestInfo.getHttpCommand().toUpperCase());
+        if (node == null)
+            return null;
+        String uri = requestInfo.getUri();
+        int end = uri.indexOf('?');
+        if (end == -1)
+            end = uri.length();
+
+        Route best = node.mount;
+        int[] params = null;
+        int paramCount = 0;
+        int pos = 0;
+        while (true) {
+            while (pos < end && uri.charAt(pos) == '/')
+                pos++;
+            if (pos == end)
+                break;
+            int segmentEnd = uri.indexOf('/', pos);
+            if (segmentEnd == -1 || segmentEnd > end)
+                segmentEnd = end;
+
+            Node child = node.literal(uri, pos, segmentEnd);
+            if (child == null && node.param != null) {
+                child = node.param;
+                if (params == null)
+                    params = new int[16];
+                else if (paramCount * 2 == params.length)
+                    params = Arrays.copyOf(params, params.length * 2);
+                params[paramCount * 2] = pos;
+                params[paramCount * 2 + 1] = segmentEnd;
+                paramCount++;
+            }
+            if (child == null)
+                break;
+            node = child;
+            pos = segmentEnd;
+            // A mount point needs the path to continue after the segment
+            if (pos < end && node.mount != null)
+                best = node.mount;
+            else if (node.exact != null)
+                best = node.exact;
+        }
+
+        if (best != null && best.paramNames.length > 0) {
+            Map<String, String> values = new HashMap<>();
+            for (int i = 0; i < best.paramNames.length; i++) {
+                values.put(best.paramNames[i], uri.substring(params[i * 2], params[i * 2 + 1]));
+            }
+            requestInfo.setPathParameters(values);
+        }
+        return best;
+    }
+
+    /**
+     * A registered servlet together with the URI it was registered for.
+     */
+    static final class Route {
+        final String pattern;
+        final Servlet servlet;
+        final String[] paramNames;
+        // Expensive routes are admitted only while few of them run, so cheap requests keep being served
+        final boolean expensive;
+        // Streaming routes keep their connection open and run on a thread of their own instead of a pool thread
+        final boolean streaming;
+        final ServerMetrics.RouteMetrics metrics;
+
+        Route(String pattern, Servlet servlet, String[] paramNames, boolean expensive, boolean streaming,
+              ServerMetrics.RouteMetrics metrics) {
+            this.pattern = pattern;
+            this.servlet = servlet;
+            this.paramNames = paramNames;
+            this.expensive = expensive;
+            this.streaming = streaming;
+            this.metrics = metrics;
+        }
+    }
+
+    /**
+     * A node of the compiled trie, its literal children are sorted for binary search.
+     */
+    private static final class Node {
+        final String[] keys;
+        final Node[] children;
+        final Node param;
+        // The route registered for this path, and the one registered for this path with a trailing slash
+        final Route exact;
+        final Route mount;
+
+        Node(String[] keys, Node[] children, Node param, Route exact, Route mount) {
+            this.keys = keys;
+            this.children = children;
+            this.param = param;
+            this.exact = exact;
+            this.mount = mount;
+        }
+
+        /**
+         * Finds the literal child for a segment of the URI.
+         *
+         * @param uri  the URI of the request.
+         * @param from the start of the segment.
+         * @param to   the end of the segment.
+         * @return the child, or null if there is none.
+         */
+        Node literal(String uri, int from, int to) {
+            int low = 0;
+            int high = keys.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = compare(keys[mid], uri, from, to);
+                if (cmp < 0)
+                    low = mid + 1;
+                else if (cmp > 0)
+                    high = mid - 1;
+                else
+                    return children[mid];
+            }
+            return null;
+        }
+
+        private static int compare(String key, String uri, int from, int to) {
+            int len = to - from;
+            int n = Math.min(key.length(), len);
+            for (int i = 0; i < n; i++) {
+                int c = key.charAt(i) - uri.charAt(from + i);
+                if (c != 0)
+                    return c;
+            }
+            return key.length() - len;
+        }
+    }
+
+    /**
+     * A mutable node used while the trie is compiled.
+     */
+    private static final class NodeBuilder {
+        final TreeMap<String, NodeBuilder> children = new TreeMap<>();
+        NodeBuilder param;
+        Route exact;
+        Route mount;
+
+        void add(String uri, Servlet servlet, boolean expensive, boolean streaming, ServerMetrics.RouteMetrics metrics) {
+            List<String> names = new ArrayList<>();
+            NodeBuilder node = this;
+            for (String segment : RequestParser.splitPath(uri)) {
+                if (segment.length() > 2 && segment.startsWith("{") && segment.endsWith("}")) {
+                    if (node.param == null)
+                        node.param = new NodeBuilder();
+                    names.add(segment.substring(1, segment.length() - 1));
+                    node = node.param;
+                } else {
+                    node = node.children.computeIfAbsent(segment, k -> new NodeBuilder());
+                }
+            }
+            Route route = new Route(uri, servlet, names.toArray(new String[0]), expensive, streaming,
+                    metrics);
+            if (uri.endsWith("/"))
+                node.mount = route;
+            else
+                node.exact = route;
+        }
+
+        Node build() {
+            String[] keys = children.keySet().toArray(new String[0]);
+            Node[] built = new Node[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                built[i] = children.get(keys[i]).build();
+            }
+            return new Node(keys, built, param != null ? param.build() : null, exact, mount);
+        }
+    }
+}
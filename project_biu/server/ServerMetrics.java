@@ -0,0 +1,379 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of a server, per route and for the connections as a whole.
+ * The metrics of a route are looked up once, when the router is compiled, so recording a request only
+ * increments counters and does not allocate. They can be read in the Prometheus text format or as JSON,
+ * see {@link MetricsServlet}.
+ */
+public class ServerMetrics {
+    // The Prometheus histogram buckets are powers of two from about 1 microsecond to 17 seconds
+    private static final int MIN_BUCKET_EXPONENT = 10;
+    private static final int MAX_BUCKET_EXPONENT = 34;
+
+    private final ConcurrentHashMap<String, RouteMetrics> routes;
+    private final RouteMetrics unmatched;
+    private final LongAdder accepted;
+    private final LongAdder rejected;
+    private final LongAdder shed;
+    private final LongAdder connectionErrors;
+    private final LatencyHistogram queueWait;
+
+    public ServerMetrics() {
+        this.routes = new ConcurrentHashMap<>();
+        this.unmatched = new RouteMetrics("*", "*");
+        this.accepted = new LongAdder();
+        this.rejected = new LongAdder();
+        this.shed = new LongAdder();
+        this.connectionErrors = new LongAdder();
+        this.queueWait = new LatencyHistogram();
+    }
+
+    /**
+     * Returns the metrics of a route, creating them on first use. They outlive the servlet, so a servlet
+     * that is replaced keeps counting where the old one stopped.
+     *
+     * @param httpCommand the HTTP command of the route.
+     * @param pattern     the URI the servlet was registered with.
+     * @return the metrics of the route.
+     */
+    RouteMetrics route(String httpCommand, String pattern) {
+        return routes.computeIfAbsent(httpCommand + " " + pattern, k -> new RouteMetrics(httpCommand, pattern));
+    }
+
+    /**
+     * @return the metrics of the requests no servlet matched.
+     */
+    RouteMetrics unmatched() {
+        return unmatched;
+    }
+
+    void connectionAccepted() {
+        accepted.increment();
+    }
+
+    /**
+     * Counts a connection turned away because the server was saturated.
+     */
+    void connectionRejected() {
+        rejected.increment();
+    }
+
+    /**
+     * Counts a request to an expensive servlet that could not be admitted.
+     */
+    void requestShed() {
+        shed.increment();
+    }
+
+    void connectionError() {
+        connectionErrors.increment();
+    }
+
+    /**
+     * @param nanos the time a connection or request waited for a worker thread.
+     */
+    void recordQueueWait(long nanos) {
+        queueWait.record(nanos);
+    }
+
+    public long getAccepted() {
+        return accepted.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public long getShed() {
+        return shed.sum();
+    }
+
+    public long getConnectionErrors() {
+        return connectionErrors.sum();
+    }
+
+    public LatencyHistogram getQueueWait() {
+        return queueWait;
+    }
+
+    /**
+     * @return the metrics of every route that was registered, followed by those of the unmatched requests.
+     */
+    public List<RouteMetrics> getRoutes() {
+        List<RouteMetrics> list = new ArrayList<>(routes.values());
+        list.sort((a, b) -> a.key().compareTo(b.key()));
+        list.add(unmatched);
+        return list;
+    }
+
+    /**
+     * Formats the metrics in the Prometheus text exposition format.
+     *
+     * @return the metrics as text.
+     */
+    public String toPrometheus() {
+        StringBuilder out = new StringBuilder();
+        List<RouteMetrics> all = getRoutes();
+
+        out.append("# HELP http_requests_total Requests answered, by route and status class.\n");
+        out.append("# TYPE http_requests_total counter\n");
+        for (RouteMetrics route : all) {
+            for (int i = 0; i < RouteMetrics.STATUS_CLASSES.length; i++) {
+                long count = route.statuses[i].sum();
+                if (count > 0) {
+                    out.append("http_requests_total{");
+                    route.labels(out);
+                    out.append(",status=\"").append(RouteMetrics.STATUS_CLASSES[i]).append("\"} ").append(count).append('\n');
+                }
+            }
+        }
+        counter(out, "http_request_errors_total", "Requests whose servlet failed.", all, r -> r.errors.sum());
+        counter(out, "http_request_bytes_total", "Bytes received in requests, headers included.", all, r -> r.bytesIn.sum());
+        counter(out, "http_response_bytes_total", "Bytes sent in responses, headers included.", all, r -> r.bytesOut.sum());
+
+        out.append("# HELP http_request_duration_seconds Time spent in the servlet, until the response was written.\n");
+        out.append("# TYPE http_request_duration_seconds histogram\n");
+        for (RouteMetrics route : all) {
+            histogram(out, "http_request_duration_seconds", route, route.servletTime.snapshot());
+        }
+        out.append("# HELP http_request_parse_seconds Time spent decoding the request line, headers and buffered body.\n");
+        out.append("# TYPE http_request_parse_seconds histogram\n");
+        for (RouteMetrics route : all) {
+            histogram(out, "http_request_parse_seconds", route, route.parseTime.snapshot());
+        }
+
+        out.append("# TYPE http_connections_accepted_total counter\n");
+        out.append("http_connections_accepted_total ").append(getAccepted()).append('\n');
+        out.append("# HELP http_connections_rejected_total Connections answered with 503 because the server was saturated.\n");
+        out.append("# TYPE http_connections_rejected_total counter\n");
+        out.append("http_connections_rejected_total ").append(getRejected()).append('\n');
+        out.append("# HELP http_requests_shed_total Expensive requests answered with 503 because too many were running.\n");
+        out.append("# TYPE http_requests_shed_total counter\n");
+        out.append("http_requests_shed_total ").append(getShed()).append('\n');
+        out.append("# TYPE http_connection_errors_total counter\n");
+        out.append("http_connection_errors_total ").append(getConnectionErrors()).append('\n');
+        out.append("# HELP http_queue_wait_seconds Time a connection or request waited for a worker thread.\n");
+        out.append("# TYPE http_queue_wait_seconds histogram\n");
+        histogram(out, "http_queue_wait_seconds", null, queueWait.snapshot());
+        return out.toString();
+    }
+
+    private interface Field {
+        long get(RouteMetrics route);
+    }
+
+    private static void counter(StringBuilder out, String name, String help, List<RouteMetrics> all, Field field) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+        for (RouteMetrics route : all) {
+            long value = field.get(route);
+            if (value > 0) {
+                out.append(name).append('{');
+                route.labels(out);
+                out.append("} ").append(value).append('\n');
+            }
+        }
+    }
+
+    private static void histogram(StringBuilder out, String name, RouteMetrics route, LatencyHistogram.Snapshot snapshot) {
+        if (route != null && snapshot.getCount() == 0)
+            return;
+        for (int exponent = MIN_BUCKET_EXPONENT; exponent <= MAX_BUCKET_EXPONENT; exponent += 2) {
+            out.append(name).append("_bucket{");
+            if (route != null) {
+                route.labels(out);
+                out.append(',');
+            }
+            out.append("le=\"").append(seconds(1L << exponent)).append("\"} ")
+                    .append(snapshot.countBelow(exponent)).append('\n');
+        }
+        out.append(name).append("_bucket{");
+        if (route != null) {
+            route.labels(out);
+            out.append(',');
+        }
+        out.append("le=\"+Inf\"} ").append(snapshot.getCount()).append('\n');
+        out.append(name).append("_sum");
+        if (route != null) {
+            out.append('{');
+            route.labels(out);
+            out.append('}');
+        }
+        out.append(' ').append(seconds(snapshot.getSum())).append('\n');
+        out.append(name).append("_count");
+        if (route != null) {
+            out.append('{');
+            route.labels(out);
+            out.append('}');
+        }
+        out.append(' ').append(snapshot.getCount()).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+
+    /**
+     * Formats the metrics as a JSON object, with quantiles of the histograms in milliseconds.
+     *
+     * @return the metrics as JSON.
+     */
+    public String toJson() {
+        StringBuilder out = new StringBuilder("{\"connections\":{");
+        out.append("\"accepted\":").append(getAccepted());
+        out.append(",\"rejected\":").append(getRejected());
+        out.append(",\"errors\":").append(getConnectionErrors());
+        out.append("},\"shed\":").append(getShed());
+        out.append(",\"queueWait\":");
+        json(out, queueWait.snapshot());
+        out.append(",\"routes\":[");
+        boolean first = true;
+        for (RouteMetrics route : getRoutes()) {
+            if (route.getRequests() == 0 && route == unmatched)
+                continue;
+            if (!first)
+                out.append(',');
+            first = false;
+            out.append("{\"method\":\"").append(escape(route.httpCommand));
+            out.append("\",\"route\":\"").append(escape(route.pattern));
+            out.append("\",\"requests\":").append(route.getRequests());
+            out.append(",\"status\":{");
+            for (int i = 0; i < RouteMetrics.STATUS_CLASSES.length; i++) {
+                if (i > 0)
+                    out.append(',');
+                out.append('"').append(RouteMetrics.STATUS_CLASSES[i]).append("\":").append(route.statuses[i].sum());
+            }
+            out.append("},\"errors\":").append(route.errors.sum());
+            out.append(",\"bytesIn\":").append(route.bytesIn.sum());
+            out.append(",\"bytesOut\":").append(route.bytesOut.sum());
+            out.append(",\"servlet\":");
+            json(out, route.servletTime.snapshot());
+            out.append(",\"parse\":");
+            json(out, route.parseTime.snapshot());
+            out.append('}');
+        }
+        return out.append("]}").toString();
+    }
+
+    private static void json(StringBuilder out, LatencyHistogram.Snapshot snapshot) {
+        out.append("{\"count\":").append(snapshot.getCount());
+        out.append(",\"sumMs\":").append(millis(snapshot.getSum()));
+        out.append(",\"p50Ms\":").append(millis(snapshot.quantile(0.5)));
+        out.append(",\"p90Ms\":").append(millis(snapshot.quantile(0.9)));
+        out.append(",\"p99Ms\":").append(millis(snapshot.quantile(0.99)));
+        out.append(",\"maxMs\":").append(millis(snapshot.quantile(1)));
+        out.append('}');
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    /**
+     * The counters and histograms of one route.
+     */
+    public static class RouteMetrics {
+        static final String[] STATUS_CLASSES = {"1xx", "2xx", "3xx", "4xx", "5xx"};
+
+        private final String httpCommand;
+        private final String pattern;
+        private final LongAdder requests;
+        private final LongAdder[] statuses;
+        private final LongAdder errors;
+        private final LongAdder bytesIn;
+        private final LongAdder bytesOut;
+        private final LatencyHistogram servletTime;
+        private final LatencyHistogram parseTime;
+
+        RouteMetrics(String httpCommand, String pattern) {
+            this.httpCommand = httpCommand;
+            this.pattern = pattern;
+            this.requests = new LongAdder();
+            this.statuses = new LongAdder[STATUS_CLASSES.length];
+            for (int i = 0; i < statuses.length; i++) {
+                statuses[i] = new LongAdder();
+            }
+            this.errors = new LongAdder();
+            this.bytesIn = new LongAdder();
+            this.bytesOut = new LongAdder();
+            this.servletTime = new LatencyHistogram();
+            this.parseTime = new LatencyHistogram();
+        }
+
+        /**
+         * Records an answered request.
+         *
+         * @param status       the status code of the response, 0 if no response was written.
+         * @param parseNanos   the time spent decoding the request.
+         * @param servletNanos the time spent writing the response.
+         * @param received     the size of the request.
+         * @param sent         the size of the response.
+         * @param failed       whether the servlet threw an exception.
+         */
+        void record(int status, long parseNanos, long servletNanos, long received, long sent, boolean failed) {
+            requests.increment();
+            if (status >= 100 && status < 600)
+                statuses[status / 100 - 1].increment();
+            if (failed)
+                errors.increment();
+            bytesIn.add(received);
+            bytesOut.add(sent);
+            servletTime.record(servletNanos);
+            parseTime.record(parseNanos);
+        }
+
+        private String key() {
+            return pattern + " " + httpCommand;
+        }
+
+        private void labels(StringBuilder out) {
+            out.append("method=\"").append(escape(httpCommand)).append("\",route=\"").append(escape(pattern)).append('"');
+        }
+
+        public String getHttpCommand() {
+            return httpCommand;
+        }
+
+        /**
+         * @return the URI the servlet was registered with, "*" for the unmatched requests.
+         */
+        public String getPattern() {
+            return pattern;
+        }
+
+        public long getRequests() {
+            return requests.sum();
+        }
+
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        public long getBytesIn() {
+            return bytesIn.sum();
+        }
+
+        public long getBytesOut() {
+            return bytesOut.sum();
+        }
+
+        public LatencyHistogram getServletTime() {
+            return servletTime;
+        }
+
+        public LatencyHistogram getParseTime() {
+            return parseTime;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package server;
+
+import server.RequestParser.RequestInfo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+ * A WebSocket connection (RFC 6455) on top of an upgraded HTTP request.
+ * Messages are read from the body stream of the request, which is the rest of the connection, and frames are
+ * written to the servlet's output stream. Reading and writing may happen on different threads.
+ * Control frames are answered while messages are read, and an idle connection is pinged so a client that
+ * went away is noticed.
+ */
+public class WebSocket {
+    /**
+     * The largest message that is accepted, larger messages close the connection.
+     */
+    public static final int MAX_MESSAGE_SIZE = 64 * 1024;
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    private static final int OP_CONTINUATION = 0x0;
+    private static final int OP_TEXT = 0x1;
+    private static final int OP_BINARY = 0x2;
+    private static final int OP_CLOSE = 0x8;
+    private static final int OP_PING = 0x9;
+    private static final int OP_PONG = 0xA;
+
+    private final InputStream in;
+    private final OutputStream out;
+    private boolean closeSent;
+
+    private WebSocket(InputStream in, OutputStream out) {
+        this.in = in;
+        this.out = out;
+    }
+
+    /**
+     * Completes the opening handshake of a WebSocket upgrade request.
+     * Requests that are not valid WebSocket upgrades are answered with an error response.
+     *
+     * @param ri       the upgrade request.
+     * @param toClient the output stream to send the response and the frames.
+     * @return the open connection, or null if the handshake failed.
+     * @throws IOException if an error occurs while writing to the output stream.
+     */
+    public static WebSocket accept(RequestInfo ri, OutputStream toClient) throws IOException {
+        String key = ri.getHeader("Sec-WebSocket-Key");
+        if (!ri.isUpgrade() || !"websocket".equalsIgnoreCase(ri.getHeader("Upgrade")) || key == null) {
+            toClient.write("HTTP/1.1 400 Bad Request\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes());
+            toClient.flush();
+            return null;
+        }
+        if (!"13".equals(ri.getHeader("Sec-WebSocket-Version"))) {
+            toClient.write(("HTTP/1.1 426 Upgrade Required\r\nSec-WebSocket-Version: 13\r\n" +
+                    "Content-Length: 0\r\nConnection: close\r\n\r\n").getBytes());
+            toClient.flush();
+            return null;
+        }
+        toClient.write(("HTTP/1.1 101 Switching Protocols\r\n" +
+                "Upgrade: websocket\r\n" +
+                "Connection: Upgrade\r\n" +
+                "Sec-WebSocket-Accept: " + acceptKey(key.trim()) + "\r\n" +
+                "\r\n").getBytes());
+        toClient.flush();
+        return new WebSocket(ri.getBodyStream(), toClient);
+    }
+
+    private static String acceptKey(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((key + ACCEPT_GUID).getBytes(StandardCharsets.ISO_8859_1));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reads the next text message, answering the control frames that arrive before it.
+     *
+     * @return the message, or null once the connection was closed.
+     * @throws IOException if reading fails or the connection breaks.
+     */
+    public String receive() throws IOException {
+        ByteArrayOutputStream message = null;
+        while (true) {
+            int b0 = readByte();
+            if (b0 == -1)
+                return null;
+            int b1 = readByte();
+            if (b1 == -1)
+                return null;
+            boolean fin = (b0 & 0x80) != 0;
+            int opcode = b0 & 0x0F;
+            long length = b1 & 0x7F;
+            if (length == 126)
+                length = readNumber(2);
+            else if (length == 127)
+                length = readNumber(8);
+            // Clients must mask their frames
+            if ((b1 & 0x80) == 0 || length < 0) {
+                close(1002);
+                return null;
+            }
+            long limit = opcode >= OP_CLOSE ? 125 : MAX_MESSAGE_SIZE - (message != null ? message.size() : 0);
+            if (length > limit) {
+                close(opcode >= OP_CLOSE ? 1002 : 1009);
+                return null;
+            }
+            byte[] mask = readFully(4);
+            byte[] payload = readFully((int) length);
+            for (int i = 0; i < payload.length; i++) {
+                payload[i] ^= mask[i & 3];
+            }
+
+            switch (opcode) {
+                case OP_PING:
+                    writeFrame(OP_PONG, payload);
+                    break;
+                case OP_PONG:
+                    break;
+                case OP_CLOSE:
+                    // The close frame is echoed with the client's status code
+                    synchronized (this) {
+                        if (!closeSent) {
+                            writeFrame(OP_CLOSE, payload.length >= 2 ? new byte[]{payload[0], payload[1]} : new byte[0]);
+                            closeSent = true;
+                        }
+                    }
+                    return null;
+                case OP_TEXT:
+                case OP_CONTINUATION:
+                    if ((opcode == OP_TEXT) == (message != null)) {
+                        close(1002);
+                        return null;
+                    }
+                    if (message == null)
+                        message = new ByteArrayOutputStream();
+                    message.write(payload);
+                    if (fin)
+                        return message.toString(StandardCharsets.UTF_8);
+                    break;
+                case OP_BINARY:
+                    close(1003);
+                    return null;
+                default:
+                    close(1002);
+                    return null;
+            }
+        }
+    }
+
+    /**
+     * Sends a text message.
+     *
+     * @param text the message.
+     * @throws IOException if writing fails.
+     */
+    public void send(String text) throws IOException {
+        writeFrame(OP_TEXT, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Sends a ping, which the client answers to show it is still there.
+     *
+     * @throws IOException if writing fails.
+     */
+    public void ping() throws IOException {
+        writeFrame(OP_PING, new byte[0]);
+    }
+
+    /**
+     * Starts the closing handshake, unless it was already started.
+     *
+     * @param code the status code of the close frame.
+     * @throws IOException if writing fails.
+     */
+    public synchronized void close(int code) throws IOException {
+        if (closeSent)
+            return;
+        writeFrame(OP_CLOSE, new byte[]{(byte) (code >> 8), (byte) code});
+        closeSent = true;
+    }
+
+    private synchronized void writeFrame(int opcode, byte[] payload) throws IOException {
+        if (closeSent)
+            throw new IOException("WebSocket closed");
+        byte[] header;
+        if (payload.length < 126) {
+            header = new byte[]{(byte) (0x80 | opcode), (byte) payload.length};
+        } else if (payload.length <= 0xFFFF) {
+            header = new byte[]{(byte) (0x80 | opcode), 126, (byte) (payload.length >> 8), (byte) payload.length};
+        } else {
+            header = new byte[10];
+            header[0] = (byte) (0x80 | opcode);
+            header[1] = 127;
+            for (int i = 0; i < 8; i++) {
+                header[9 - i] = (byte) ((long) payload.length >> (8 * i));
+            }
+        }
+        out.write(header);
+        out.write(payload);
+        out.flush();
+    }
+
+    /**
+     * Reads a byte of a frame. A read that times out on an idle connection sends a ping and reads again.
+     *
+     * @return the byte, or -1 at the end of the connection.
+     * @throws IOException if reading fails.
+     */
+    private int readByte() throws IOException {
+        while (true) {
+            try {
+                return in.read();
+            } catch (SocketTimeoutException e) {
+                ping();
+            }
+        }
+    }
+
+    private long readNumber(int size) throws IOException {
+        byte[] bytes = readFully(size);
+        long value = 0;
+        for (byte b : bytes) {
+            value = (value << 8) | (b & 0xFF);
+        }
+        return value;
+    }
+
+    private byte[] readFully(int length) throws IOException {
+        byte[] bytes = new byte[length];
+        int off = 0;
+        while (off < length) {
+            int n;
+            try {
+                n = in.read(bytes, off, length - off);
+            } catch (SocketTimeoutException e) {
+                ping();
+                continue;
+            }
+            if (n < 0)
+                throw new EOFException("Connection closed in the middle of a frame");
+            off += n;
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,317 @@
+package servlets;
+
+import graph.Message;
+import graph.Topic;
+import graph.TopicManagerSingleton;
+import server.RequestParser.RequestInfo;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Publishes many topic values from the body of one request, for gateways that push data in bulk.
+ * The body is read as a stream and every value is published as soon as it was read, so the size of a batch
+ * is not limited by memory. It holds either lines of the form {@code topic=value}, or JSON: an object mapping
+ * topic names to values, or an array of objects with a {@code topic} and a {@code value}, as sent by
+ * {@link TopicStreamer}.
+ * <p>
+ * Values for unknown topics are skipped. The response is a JSON summary with the number of published and
+ * skipped values.
+ */
+public class BatchPublisher implements Servlet {
+    // Longer names and values are not stored, the request is rejected
+    private static final int MAX_TOKEN_LENGTH = 64 * 1024;
+
+    @Override
+    public void handle(RequestInfo ri, OutputStream toClient) throws IOException {
+        Batch batch = new Batch();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(ri.getBodyStream(), StandardCharsets.UTF_8));
+        String error = null;
+        try {
+            String contentType = ri.getHeader("Content-Type");
+            int first = skipWhitespace(reader);
+            if ((contentType != null && contentType.contains("json")) || first == '{' || first == '[')
+                new JsonBatchReader(reader, batch).read();
+            else
+                readLines(reader, batch);
+        } catch (BatchFormatException e) {
+            error = e.getMessage();
+        }
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\"published\":").append(batch.published);
+        json.append(",\"unknown\":").append(batch.unknown);
+        if (error != null) {
+            json.append(",\"error\":");
+            TopicUpdates.appendJsonString(json, error);
+        }
+        json.append('}');
+        byte[] body = json.toString().getBytes(StandardCharsets.UTF_8);
+        toClient.write(((error == null ? "HTTP/1.1 200 OK" : "HTTP/1.1 400 Bad Request") + "\r\n" +
+                "Content-Type: application/json\r\n" +
+                "Content-Length: " + body.length + "\r\n" +
+                "\r\n").getBytes());
+        toClient.write(body);
+        toClient.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+
+    }
+
+    /**
+     * Skips whitespace at the start of the body.
+     *
+     * @return the first other character, which is left to be read, or -1 if the body is empty.
+     */
+    private static int skipWhitespace(BufferedReader reader) throws IOException {
+        while (true) {
+            reader.mark(1);
+            int c = reader.read();
+            if (c == -1 || !Character.isWhitespace(c)) {
+                reader.reset();
+                return c;
+            }
+        }
+    }
+
+    /**
+     * Publishes lines of the form topic=value. Empty lines and lines without '=' are ignored.
+     * Lines are read a character at a time, so a name or a value that is too long is rejected before it is
+     * buffered whole.
+     */
+    private static void readLines(BufferedReader reader, Batch batch) throws IOException {
+        StringBuilder line = new StringBuilder();
+        // The index of the first '=' of the line, -1 until there is one
+        int eq = -1;
+        int c;
+        do {
+            c = reader.read();
+            if (c == -1 || c == '\n' || c == '\r') {
+                if (eq != -1)
+                    batch.publish(line.substring(0, eq).trim(), line.substring(eq + 1).trim());
+                line.setLength(0);
+                eq = -1;
+            } else if (c == '=' && eq == -1) {
+                eq = line.length();
+                line.append('=');
+            } else {
+                int tokenLength = eq == -1 ? line.length() : line.length() - eq - 1;
+                if (tokenLength == MAX_TOKEN_LENGTH)
+                    throw new BatchFormatException("Name or value too long");
+                line.append((char) c);
+            }
+        } while (c != -1);
+    }
+
+    /**
+     * Counts the values of a batch while they are published.
+     */
+    private static class Batch {
+        private final TopicManagerSingleton.TopicManager tm = TopicManagerSingleton.get();
+        int published;
+        int unknown;
+
+        void publish(String name, String value) {
+            Topic topic = tm.findTopic(name);
+            if (topic == null) {
+                unknown++;
+                return;
+            }
+            topic.publish(new Message(value));
+            published++;
+        }
+    }
+
+    /**
+     * Thrown when the body is not a valid batch.
+     */
+    private static class BatchFormatException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        BatchFormatException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Reads a JSON batch token by token. Only the shapes of a batch are accepted, values must be strings,
+     * numbers, booleans or null.
+     */
+    private static class JsonBatchReader {
+        private final BufferedReader reader;
+        private final Batch batch;
+        private final StringBuilder token = new StringBuilder();
+
+        JsonBatchReader(BufferedReader reader, Batch batch) {
+            this.reader = reader;
+            this.batch = batch;
+        }
+
+        void read() throws IOException {
+            int c = next();
+            if (c == '{') {
+                readObject();
+            } else if (c == '[') {
+                if (peek() == ']') {
+                    next();
+                } else {
+                    do {
+                        expect('{');
+                        readPair();
+                    } while (separator(']'));
+                }
+            } else {
+                throw new BatchFormatException("Expected an object or an array");
+            }
+            if (next() != -1)
+                throw new BatchFormatException("Unexpected content after the batch");
+        }
+
+        /**
+         * Reads {"topic": value, ...} after its opening brace.
+         */
+        private void readObject() throws IOException {
+            if (peek() == '}') {
+                next();
+                return;
+            }
+            do {
+                expect('"');
+                String name = readString();
+                expect(':');
+                batch.publish(name, readValue());
+            } while (separator('}'));
+        }
+
+        /**
+         * Reads {"topic": name, "value": value} after its opening brace, other members are ignored.
+         */
+        private void readPair() throws IOException {
+            String name = null;
+            String value = null;
+            if (peek() != '}') {
+                do {
+                    expect('"');
+                    String key = readString();
+                    expect(':');
+                    String member = readValue();
+                    if (key.equals("topic"))
+                        name = member;
+                    else if (key.equals("value"))
+                        value = member;
+                } while (separator('}'));
+            } else {
+                next();
+            }
+            if (name == null || value == null)
+                throw new BatchFormatException("Every entry needs a topic and a value");
+            batch.publish(name, value);
+        }
+
+        /**
+         * Reads a scalar value as the text of the message.
+         */
+        private String readValue() throws IOException {
+            int c = next();
+            if (c == '"')
+                return readString();
+            if (c == '{' || c == '[' || c == -1)
+                throw new BatchFormatException("Values must be strings, numbers or booleans");
+            token.setLength(0);
+            token.append((char) c);
+            while (true) {
+                reader.mark(1);
+                c = reader.read();
+                if (c == -1 || c == ',' || c == '}' || c == ']' || Character.isWhitespace(c)) {
+                    reader.reset();
+                    return token.toString();
+                }
+                append(c);
+            }
+        }
+
+        /**
+         * Reads a string after its opening quote.
+         */
+        private String readString() throws IOException {
+            token.setLength(0);
+            while (true) {
+                int c = reader.read();
+                if (c == -1)
+                    throw new BatchFormatException("Unterminated string");
+                if (c == '"')
+                    return token.toString();
+                if (c == '\\') {
+                    c = reader.read();
+                    switch (c) {
+                        case 'n': c = '\n'; break;
+                        case 't': c = '\t'; break;
+                        case 'r': c = '\r'; break;
+                        case 'b': c = '\b'; break;
+                        case 'f': c = '\f'; break;
+                        case 'u':
+                            char[] hex = new char[4];
+                            if (reader.read(hex) != 4)
+                                throw new BatchFormatException("Invalid escape");
+                            try {
+                                c = Integer.parseInt(new String(hex), 16);
+                            } catch (NumberFormatException e) {
+                                throw new BatchFormatException("Invalid escape");
+                            }
+                            break;
+                        case -1:
+                            throw new BatchFormatException("Unterminated string");
+                        default:
+                            break;
+                    }
+                }
+                append(c);
+            }
+        }
+
+        private void append(int c) throws BatchFormatException {
+            if (token.length() == MAX_TOKEN_LENGTH)
+                throw new BatchFormatException("Name or value too long");
+            token.append((char) c);
+        }
+
+        /**
+         * Reads the separator after a member.
+         *
+         * @return true if another member follows, false at the closing character.
+         */
+        private boolean separator(char close) throws IOException {
+            int c = next();
+            if (c == ',')
+                return true;
+            if (c == close)
+                return false;
+            throw new BatchFormatException("Expected ',' or '" + close + "'");
+        }
+
+        private void expect(char expected) throws IOException {
+            if (next() != expected)
+                throw new BatchFormatException("Expected '" + expected + "'");
+        }
+
+        /**
+         * @return the next character that is not whitespace, or -1 at the end of the body.
+         */
+        private int next() throws IOException {
+            int c;
+            do {
+                c = reader.read();
+            } while (c != -1 && Character.isWhitespace(c));
+            return c;
+        }
+
+        private int peek() throws IOException {
+            return skipWhitespace(reader);
+        }
+    }
+}
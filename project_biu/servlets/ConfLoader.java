@@ -3,18 +3,62 @@ package servlets;
 import configs.GenericConfig;
 import graph.Graph;
 import graph.TopicManagerSingleton;
+import server.MultipartReader;
+import server.PayloadTooLargeException;
 import server.RequestParser.RequestInfo;
 import views.HtmlGraphWriter;
+import views.HtmlTemplate;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
 
 
 public class ConfLoader implements Servlet {
+    private final HtmlTemplate graphTemplate = new HtmlTemplate("html_files/graph.html", HtmlGraphWriter.GRAPH_DATA);
+    // The executor shared by the agents, null to run them on the publishing thread
+    private final ExecutorService agentExecutor;
+    // Whether configurations are compiled instead of created as agents
+    private boolean compiled;
+    // The configuration that is loaded, closed when the next one replaces it
+    private GenericConfig config;
+
+    /**
+     * Creates a loader whose agents run on the thread that publishes to their topics.
+     */
+    public ConfLoader() {
+        this(null);
+    }
+
+    /**
+     * Creates a loader that compiles acyclic configurations into an evaluation plan, see {@link graph.EvaluationPlan}.
+     *
+     * @param compiled Whether to compile configurations.
+     */
+    public ConfLoader(boolean compiled) {
+        this(null);
+        this.compiled = compiled;
+    }
+
+    /**
+     * Creates a loader whose agents run in actor mode on a shared executor, see {@link graph.ParallelAgent}.
+     *
+     * @param agentExecutor The executor shared by the agents of every loaded configuration, shut down by {@link #close()}.
+     */
+    public ConfLoader(ExecutorService agentExecutor) {
+        this.agentExecutor = agentExecutor;
+    }
+
     /**
      * This method handles incoming requests related to configuration loading.
      * It reads the content of a configuration file from the request, processes it,
      * and generates a graph based on the configuration. The generated graph is then
      * converted to HTML and sent as a response to the client.
+     * Multipart uploads are streamed from the request straight into the configuration file,
+     * so only a fixed-size buffer is held no matter how large the file is.
      *
      * @param ri       The RequestInfo object containing information about the incoming request.
      * @param toClient The OutputStream to which the response will be written.
@@ -22,59 +66,151 @@ public class ConfLoader implements Servlet {
      */
     @Override
     public void handle(RequestInfo ri, OutputStream toClient) throws IOException {
-        // Check if the request contains a filename parameter
-        if (!ri.getParameters().containsKey("filename"))
-            return;
-
-        // Get the filename from the request parameters
-        String filename = ri.getParameters().get("filename");
-
-        // Write the request content to the specified configuration file
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter("config_files/" + filename))) {
-            writer.write(new String(ri.getContent(), 0));
+        // Write the uploaded file to the configuration folder
+        String filename;
+        try {
+            String boundary = MultipartReader.boundary(ri.getHeader("Content-Type"));
+            filename = boundary != null ? storePart(ri, boundary) : storeContent(ri);
+        } catch (PayloadTooLargeException e) {
+            throw e;
         } catch (Exception e) {
             e.printStackTrace();
+            filename = null;
+        }
+        if (filename == null) {
+            sendBadRequest(toClient);
             return;
         }
 
-        TopicManagerSingleton.TopicManager tm = TopicManagerSingleton.get();
-        tm.clear();
-
-        // Create a new GenericConfig object and set its configuration file
-        GenericConfig config = new GenericConfig();
-        config.setConfFile("config_files/" + filename);
-        config.create();
+        loadConfig("config_files/" + filename);
 
         // Create a new graph based on the topics in the configuration
         Graph g = new Graph();
         g.createFromTopics();
 
         // Generate HTML content for the graph and send
-        String[] content = HtmlGraphWriter.getGraphHTML(g, "html_files/graph.html");
-        sendContent(content, toClient);
+        sendContent(g, toClient);
     }
 
     @Override
-    public void close() throws IOException {
+    public synchronized void close() throws IOException {
+        if (config != null) {
+            config.close();
+            config = null;
+        }
+        if (agentExecutor != null)
+            agentExecutor.shutdownNow();
+    }
 
+    /**
+     * Replaces the loaded configuration. The agents of the previous one are closed first, so their queues
+     * and threads do not outlive their topics.
+     *
+     * @param path The path of the configuration file.
+     */
+    private synchronized void loadConfig(String path) {
+        if (config != null)
+            config.close();
+        TopicManagerSingleton.TopicManager tm = TopicManagerSingleton.get();
+        tm.clear();
+
+        // Create a new GenericConfig object and set its configuration file
+        config = new GenericConfig();
+        config.setConfFile(path);
+        if (agentExecutor != null)
+            config.setExecutor(agentExecutor, GenericConfig.DEFAULT_QUEUE_SIZE);
+        config.setCompiled(compiled);
+        config.create();
     }
 
+    /**
+     * Streams the first file part of a multipart body into the configuration folder.
+     *
+     * @param ri       The RequestInfo object containing the upload.
+     * @param boundary The multipart boundary of the body.
+     * @return The name of the stored file, or null if the body has no file part.
+     * @throws IOException If reading the body or writing the file fails.
+     */
+    private String storePart(RequestInfo ri, String boundary) throws IOException {
+        MultipartReader reader = new MultipartReader(ri.getBodyStream(), boundary);
+        MultipartReader.Part part;
+        while ((part = reader.nextPart()) != null) {
+            String filename = safeFilename(part.getFilename());
+            if (filename == null)
+                continue;
+            try (FileChannel file = openConfigFile(filename)) {
+                reader.transferPart(file);
+            }
+            return filename;
+        }
+        return null;
+    }
 
     /**
-     * This method sends the content to the client using the provided OutputStream.
+     * Stores the content of a request that was parsed ahead, where the file name is a parameter.
+     * Only a buffered body is stored this way, larger files have to be uploaded as multipart.
+     *
+     * @param ri The RequestInfo object containing the upload.
+     * @return The name of the stored file, or null if the request has no filename parameter.
+     * @throws IOException If writing the file fails.
+     */
+    private String storeContent(RequestInfo ri) throws IOException {
+        String filename = safeFilename(ri.getParameters().get("filename"));
+        if (filename == null)
+            return null;
+        ByteBuffer content = ByteBuffer.wrap(ri.getContent());
+        try (FileChannel file = openConfigFile(filename)) {
+            while (content.hasRemaining())
+                file.write(content);
+        }
+        return filename;
+    }
+
+    private static FileChannel openConfigFile(String filename) throws IOException {
+        return FileChannel.open(Paths.get("config_files", filename),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Keeps only the last path element of an uploaded file name, so uploads cannot leave the configuration folder.
+     *
+     * @param filename The file name sent by the client, may be null.
+     * @return The file name to store, or null if there is none.
+     */
+    private static String safeFilename(String filename) {
+        if (filename == null)
+            return null;
+        filename = filename.substring(Math.max(filename.lastIndexOf('/'), filename.lastIndexOf('\\')) + 1);
+        return filename.isEmpty() || filename.equals("..") ? null : filename;
+    }
+
+
+    /**
+     * This method sends the HTML representation of the graph to the client using the provided OutputStream.
      * The content is formatted as an HTTP response with a 200 OK status code and a text/html content type.
+     * It is rendered straight into the stream, which frames the body so the connection can be reused.
      *
-     * @param content  The array of strings representing the content to be sent to the client.
-     *                 Each string in the array represents a line of the content.
+     * @param graph    The graph to be displayed.
      * @param toClient The OutputStream to which the content will be written.
      * @throws IOException If an I/O error occurs while writing to the OutputStream.
      */
-    private void sendContent(String[] content, OutputStream toClient) throws IOException {
+    private void sendContent(Graph graph, OutputStream toClient) throws IOException {
         toClient.write(("HTTP/1.1 200 OK\r\n").getBytes());
         toClient.write(("Content-Type: text/html\r\n").getBytes());
         toClient.write(("\r\n").getBytes());
-        for (String line : content)
-            toClient.write(line.getBytes());
+        HtmlGraphWriter.writeGraphHTML(graph, graphTemplate, toClient);
+        toClient.flush();
     }
 
+    /**
+     * Sends a 400 Bad Request response to the client, used when the upload could not be stored.
+     *
+     * @param toClient The OutputStream to which the response will be written.
+     * @throws IOException If an I/O error occurs while writing to the OutputStream.
+     */
+    private void sendBadRequest(OutputStream toClient) throws IOException {
+        String response = "HTTP/1.1 400 Bad Request\r\nContent-Length: 0\r\n\r\n";
+        toClient.write(response.getBytes());
+        toClient.flush();
+    }
 }
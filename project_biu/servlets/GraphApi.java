@@ -0,0 +1,87 @@
+package servlets;
+
+import graph.Agent;
+import graph.ParallelAgent;
+import graph.Topic;
+import graph.TopicManagerSingleton;
+import server.RequestParser.RequestInfo;
+import views.JsonWriter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serves the computational graph as JSON: the topics and agents, each with the ids of the nodes its edges
+ * lead to, in the node format of the graph page. Agents with a queue also report its overflow policy and how many
+ * messages it dropped or conflated.
+ * The graph is walked from the topics without building a {@link graph.Graph}, which would assign new ids to
+ * the topics and confuse the pages that use them.
+ */
+public class GraphApi implements Servlet {
+    @Override
+    public void handle(RequestInfo ri, OutputStream toClient) throws IOException {
+        TopicManagerSingleton.TopicManager tm = TopicManagerSingleton.get();
+        // Agents have no name of their own that is unique, they are told apart by identity
+        Map<Agent, String> agentIds = new IdentityHashMap<>();
+        Map<Agent, List<Topic>> agentOutputs = new IdentityHashMap<>();
+
+        JsonWriter json = TopicApi.startResponse(toClient);
+        json.beginObject();
+        json.name("nodes").beginArray();
+        for (Topic topic : tm.getTopics()) {
+            json.beginObject();
+            json.name("id").value(topicId(topic));
+            json.name("type").value("Topic");
+            json.name("name").value(topic.name);
+            json.name("edges").beginArray();
+            for (Agent agent : topic.getSubscribers()) {
+                json.value(agentId(agent, agentIds));
+            }
+            json.endArray();
+            json.endObject();
+            for (Agent agent : topic.getPublishers()) {
+                agentId(agent, agentIds);
+                agentOutputs.computeIfAbsent(agent, a -> new ArrayList<>()).add(topic);
+            }
+        }
+        for (Map.Entry<Agent, String> agent : agentIds.entrySet()) {
+            json.beginObject();
+            json.name("id").value(agent.getValue());
+            json.name("type").value("Agent");
+            json.name("name").value(agent.getKey().getName());
+            if (agent.getKey() instanceof ParallelAgent) {
+                ParallelAgent parallel = (ParallelAgent) agent.getKey();
+                json.name("overflow").value(parallel.getOverflowPolicy().name().toLowerCase());
+                json.name("dropped").value(parallel.getDropped());
+                json.name("conflated").value(parallel.getConflated());
+            }
+            json.name("edges").beginArray();
+            for (Topic topic : agentOutputs.getOrDefault(agent.getKey(), Collections.emptyList())) {
+                json.value(topicId(topic));
+            }
+            json.endArray();
+            json.endObject();
+        }
+        json.endArray();
+        json.endObject();
+        json.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+
+    }
+
+    private static String topicId(Topic topic) {
+        return "T" + topic.name;
+    }
+
+    private static String agentId(Agent agent, Map<Agent, String> agentIds) {
+        return agentIds.computeIfAbsent(agent, a -> "A" + Integer.toHexString(System.identityHashCode(a)));
+    }
+}
@@ -1,24 +1,44 @@
 package servlets;
 
 import server.RequestParser.RequestInfo;
+import server.ResponseEncoder;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.nio.file.Files;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 
 
 public class HtmlLoader implements Servlet {
+    private static final long DEFAULT_CACHE_SIZE = 16 * 1024 * 1024;
+    private static final long MAX_CACHED_FILE_SIZE = 1024 * 1024;
+
     String htmlFolder;
+    private final StaticFileCache cache;
 
     public HtmlLoader(String htmlFolder) {
+        this(htmlFolder, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Constructs a new HtmlLoader.
+     *
+     * @param htmlFolder the folder the files are served from.
+     * @param cacheSize  the maximum number of bytes of file contents kept in memory.
+     */
+    public HtmlLoader(String htmlFolder, long cacheSize) {
         this.htmlFolder = htmlFolder;
+        this.cache = new StaticFileCache(cacheSize, Math.min(cacheSize, MAX_CACHED_FILE_SIZE));
     }
 
     /**
      * Handles HTTP requests by loading HTML files from a specified folder.
+     * Files are served from a cache, and a 304 Not Modified response is sent when the client's copy is current.
      *
      * @param ri       The parsed request information.
      * @param toClient The OutputStream to write the HTTP response and file content to.
@@ -35,33 +55,86 @@ public class HtmlLoader implements Servlet {
 
         Path requestedPath = Paths.get(htmlFolder, uriSegments);
 
-        if (Files.exists(requestedPath)) {
-            sendFile(requestedPath, toClient);
-        } else if (Files.isRegularFile(requestedPath)) {
-            sendFile(requestedPath, toClient);
-        } else {
+        StaticFileCache.Entry entry = cache.get(requestedPath);
+        if (entry == null) {
             sendNotFound(toClient);
+            return;
+        }
+        // Compressible files that are cached are sent from their precompressed variant
+        boolean compressible = entry.getContent() != null && entry.getSize() >= ResponseEncoder.MIN_COMPRESS_SIZE
+                && ResponseEncoder.isCompressible(contentType(entry));
+        boolean gzip = compressible && "gzip".equals(ResponseEncoder.negotiate(ri.getHeader("Accept-Encoding")));
+        if (entry.isNotModified(ri.getHeader("If-None-Match"), ri.getHeader("If-Modified-Since"))) {
+            sendNotModified(entry, compressible, gzip, toClient);
+        } else {
+            sendFile(entry, compressible, gzip, toClient);
         }
     }
 
     /**
      * Sends a file to the client using HTTP 200 OK response.
+     * Cached files are written from memory, larger files are transferred from disk without buffering them.
      *
-     * @param filePath The path to the file to be sent.
-     * @param toClient The OutputStream to write the HTTP response and file content to.
+     * @param entry        The cache entry of the file to be sent.
+     * @param compressible Whether the file has a gzip variant.
+     * @param gzip         Whether the gzip variant is sent.
+     * @param toClient     The OutputStream to write the HTTP response and file content to.
      * @throws IOException If an I/O error occurs while reading the file or writing to the client.
      */
-    private void sendFile(Path filePath, OutputStream toClient) throws IOException {
-        byte[] content = Files.readAllBytes(filePath);
-        toClient.write(("HTTP/1.1 200 OK\r\n").getBytes());
-        toClient.write(("Content-Type: text/").getBytes());
-        toClient.write(filePath.getFileName().toString().split("\\.")[1].toLowerCase().getBytes()); // hml, css, ...
-        toClient.write(("\r\n").getBytes());
-        toClient.write(("Content-Length: " + content.length + "\r\n").getBytes());
-        toClient.write(("\r\n").getBytes());
-        toClient.write(content);
+    private void sendFile(StaticFileCache.Entry entry, boolean compressible, boolean gzip, OutputStream toClient)
+            throws IOException {
+        byte[] content = gzip ? entry.getGzipContent() : entry.getContent();
+        String header = "HTTP/1.1 200 OK\r\n" +
+                "Content-Type: " + contentType(entry) + "\r\n" +
+                "Content-Length: " + (content != null ? content.length : entry.getSize()) + "\r\n" +
+                (gzip ? "Content-Encoding: gzip\r\n" : "") +
+                validatorHeaders(entry, compressible, gzip) +
+                "\r\n";
+        toClient.write(header.getBytes());
+        if (content != null) {
+            toClient.write(content);
+            return;
+        }
+        try (FileChannel file = FileChannel.open(entry.getPath(), StandardOpenOption.READ)) {
+            WritableByteChannel target = Channels.newChannel(toClient);
+            long position = 0;
+            while (position < entry.getSize()) {
+                long n = file.transferTo(position, entry.getSize() - position, target);
+                if (n <= 0)
+                    throw new IOException("File shrank while it was sent: " + entry.getPath());
+                position += n;
+            }
+        }
     }
 
+    /**
+     * Sends a 304 Not Modified HTTP response to the client.
+     *
+     * @param entry        The cache entry of the requested file.
+     * @param compressible Whether the file has a gzip variant.
+     * @param gzip         Whether the client's copy is the gzip variant.
+     * @param toClient     The OutputStream to write the response to.
+     * @throws IOException If an I/O error occurs while writing to the client.
+     */
+    private void sendNotModified(StaticFileCache.Entry entry, boolean compressible, boolean gzip, OutputStream toClient)
+            throws IOException {
+        String response = "HTTP/1.1 304 Not Modified\r\n" + validatorHeaders(entry, compressible, gzip) + "\r\n";
+        toClient.write(response.getBytes());
+        toClient.flush();
+    }
+
+    private static String validatorHeaders(StaticFileCache.Entry entry, boolean compressible, boolean gzip) {
+        // Browsers may keep the file but have to revalidate it, so edited files show up on refresh
+        return "ETag: " + (gzip ? entry.getGzipEtag() : entry.getEtag()) + "\r\n" +
+                "Last-Modified: " + entry.getLastModifiedHeader() + "\r\n" +
+                "Cache-Control: no-cache\r\n" +
+                (compressible ? "Vary: Accept-Encoding\r\n" : "");
+    }
+
+    private static String contentType(StaticFileCache.Entry entry) {
+        String fileName = entry.getPath().getFileName().toString();
+        return "text/" + fileName.substring(fileName.lastIndexOf('.') + 1).toLowerCase(); // hml, css, ...
+    }
 
     /**
      * Sends a 404 Not Found HTTP response to the client.
@@ -0,0 +1,199 @@
+package servlets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps the content of static files in memory, so a file is read from disk only when it changed.
+ * The cache is bounded by the total size of the contents and evicts the least recently used files first.
+ * Every lookup compares the modification time and size of the file with the cached ones, so edited
+ * files are reloaded on the next request. The content of files above the entry limit is not held in memory,
+ * only their validators are cached and their content is sent from disk.
+ */
+class StaticFileCache {
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final LinkedHashMap<Path, Entry> entries;
+    private long totalBytes;
+
+    /**
+     * Constructs a new StaticFileCache.
+     *
+     * @param maxBytes      the maximum total size of the cached contents.
+     * @param maxEntryBytes the size above which the content of a file is not cached.
+     */
+    StaticFileCache(long maxBytes, long maxEntryBytes) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxEntryBytes;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Returns the cached entry of a file, loading it if it is not cached or changed on disk.
+     *
+     * @param path the path to the file.
+     * @return the entry, or null if the path is not a regular file.
+     * @throws IOException if reading the file fails.
+     */
+    Entry get(Path path) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            remove(path);
+            return null;
+        }
+        if (!attributes.isRegularFile())
+            return null;
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        long size = attributes.size();
+        synchronized (this) {
+            Entry entry = entries.get(path);
+            if (entry != null && entry.lastModified == lastModified && entry.size == size)
+                return entry;
+        }
+
+        byte[] content = size <= maxEntryBytes ? Files.readAllBytes(path) : null;
+        Entry entry = new Entry(path, lastModified, content != null ? content.length : size, content);
+        synchronized (this) {
+            Entry old = entries.put(path, entry);
+            if (old != null)
+                totalBytes -= old.cachedBytes();
+            totalBytes += entry.cachedBytes();
+            evict();
+        }
+        return entry;
+    }
+
+    private synchronized void remove(Path path) {
+        Entry old = entries.remove(path);
+        if (old != null)
+            totalBytes -= old.cachedBytes();
+    }
+
+    private void evict() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            totalBytes -= iterator.next().cachedBytes();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * A cached file with its HTTP validators.
+     */
+    static class Entry {
+        private final Path path;
+        private final long lastModified;
+        private final long size;
+        // Null for files that are too large to be cached, they are sent from disk
+        private final byte[] content;
+        private final String etag;
+        private final String lastModifiedHeader;
+        // The gzip variant of the content, compressed on first use
+        private volatile byte[] gzipContent;
+
+        Entry(Path path, long lastModified, long size, byte[] content) {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.size = size;
+            this.content = content;
+            this.etag = "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "\"";
+            this.lastModifiedHeader = HTTP_DATE.format(Instant.ofEpochMilli(lastModified));
+        }
+
+        Path getPath() {
+            return path;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        byte[] getContent() {
+            return content;
+        }
+
+        String getEtag() {
+            return etag;
+        }
+
+        /**
+         * @return the entity tag of the gzip variant, it differs from the one of the plain content.
+         */
+        String getGzipEtag() {
+            return etag.substring(0, etag.length() - 1) + "-gz\"";
+        }
+
+        /**
+         * Returns the content compressed with gzip, compressing it once and keeping the result.
+         *
+         * @return the compressed content, or null if the content is not cached.
+         * @throws IOException if compressing fails.
+         */
+        byte[] getGzipContent() throws IOException {
+            byte[] compressed = gzipContent;
+            if (compressed == null && content != null) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.length / 3);
+                try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+                    gzip.write(content);
+                }
+                compressed = bytes.toByteArray();
+                gzipContent = compressed;
+            }
+            return compressed;
+        }
+
+        String getLastModifiedHeader() {
+            return lastModifiedHeader;
+        }
+
+        /**
+         * Checks the conditional headers of a request against the file.
+         * If-None-Match takes precedence over If-Modified-Since, as HTTP requires.
+         *
+         * @param ifNoneMatch     the If-None-Match header, may be null.
+         * @param ifModifiedSince the If-Modified-Since header, may be null.
+         * @return true if the client's copy is current and a 304 Not Modified response can be sent.
+         */
+        boolean isNotModified(String ifNoneMatch, String ifModifiedSince) {
+            if (ifNoneMatch != null) {
+                for (String tag : ifNoneMatch.split(",")) {
+                    tag = tag.trim();
+                    if (tag.startsWith("W/"))
+                        tag = tag.substring(2);
+                    if (tag.equals("*") || tag.equals(etag) || tag.equals(getGzipEtag()))
+                        return true;
+                }
+                return false;
+            }
+            if (ifModifiedSince != null) {
+                try {
+                    long since = Instant.from(HTTP_DATE.parse(ifModifiedSince)).toEpochMilli();
+                    // HTTP dates have a resolution of one second
+                    return lastModified / 1000 <= since / 1000;
+                } catch (RuntimeException e) {
+                    return false;
+                }
+            }
+            return false;
+        }
+
+        private long cachedBytes() {
+            // Room is reserved for a gzip variant, which is smaller than the content of any file worth compressing
+            return content != null ? content.length * 2L : 0;
+        }
+    }
+}
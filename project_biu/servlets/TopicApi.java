@@ -0,0 +1,172 @@
+package servlets;
+
+import graph.Message;
+import graph.Topic;
+import graph.TopicManagerSingleton;
+import server.RequestParser.RequestInfo;
+import views.JsonWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Serves the topic values as JSON, for clients that would otherwise scrape the values page.
+ * Registered for {@code /api/topics} it lists the topics sorted by name, optionally only those whose
+ * name starts with the {@code prefix} parameter, a page of {@code limit} topics at a time starting at
+ * {@code offset}. Registered for {@code /api/topics/{name}} it returns a single topic.
+ * <p>
+ * Every topic is written as {@code {"name", "id", "value", "version"}}, where the value is a number, a
+ * string, or null if nothing was published to it. The JSON is written to the response while the topics are
+ * visited, so only the requested page is ever serialized.
+ */
+public class TopicApi implements Servlet {
+    private static final int DEFAULT_LIMIT = 100;
+    private static final int MAX_LIMIT = 1000;
+
+    @Override
+    public void handle(RequestInfo ri, OutputStream toClient) throws IOException {
+        TopicManagerSingleton.TopicManager tm = TopicManagerSingleton.get();
+        String name = ri.getPathParameters().get("name");
+        if (name != null) {
+            name = percentDecode(name);
+            if (name == null) {
+                sendError(toClient, "400 Bad Request", "Invalid escape in the topic name");
+                return;
+            }
+            Topic topic = tm.findTopic(name);
+            if (topic == null) {
+                sendError(toClient, "404 Not Found", "Unknown topic");
+                return;
+            }
+            JsonWriter json = startResponse(toClient);
+            writeTopic(json, topic);
+            json.flush();
+            return;
+        }
+        if (ri.getUriSegments().length > 2) {
+            sendError(toClient, "404 Not Found", "Unknown resource");
+            return;
+        }
+
+        String prefix = ri.getParameters().getOrDefault("prefix", "");
+        int offset;
+        int limit;
+        try {
+            offset = Integer.parseInt(ri.getParameters().getOrDefault("offset", "0"));
+            limit = Integer.parseInt(ri.getParameters().getOrDefault("limit", String.valueOf(DEFAULT_LIMIT)));
+        } catch (NumberFormatException e) {
+            sendError(toClient, "400 Bad Request", "offset and limit must be numbers");
+            return;
+        }
+        if (offset < 0 || limit < 0) {
+            sendError(toClient, "400 Bad Request", "offset and limit must not be negative");
+            return;
+        }
+        limit = Math.min(limit, MAX_LIMIT);
+
+        long version = tm.getVersion();
+        List<Topic> topics = new ArrayList<>();
+        for (Topic topic : tm.getTopics()) {
+            if (topic.name.startsWith(prefix))
+                topics.add(topic);
+        }
+        // Sorted, so consecutive pages do not overlap
+        topics.sort(Comparator.comparing(topic -> topic.name));
+
+        JsonWriter json = startResponse(toClient);
+        json.beginObject();
+        json.name("version").value(version);
+        json.name("total").value(topics.size());
+        json.name("offset").value(offset);
+        json.name("limit").value(limit);
+        json.name("topics").beginArray();
+        for (int i = offset; i < topics.size() && i < (long) offset + limit; i++) {
+            writeTopic(json, topics.get(i));
+        }
+        json.endArray();
+        json.endObject();
+        json.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+
+    }
+
+    /**
+     * Decodes the %XX escapes of a path segment as UTF-8. Unlike form decoding a '+' stays a '+'.
+     *
+     * @param segment the raw path segment.
+     * @return the decoded segment, or null if an escape is not two hex digits.
+     */
+    private static String percentDecode(String segment) {
+        if (segment.indexOf('%') == -1)
+            return segment;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(segment.length());
+        for (int i = 0; i < segment.length(); i++) {
+            char c = segment.charAt(i);
+            if (c != '%') {
+                byte[] encoded = String.valueOf(c).getBytes(StandardCharsets.UTF_8);
+                bytes.write(encoded, 0, encoded.length);
+                continue;
+            }
+            int high = i + 2 < segment.length() ? Character.digit(segment.charAt(i + 1), 16) : -1;
+            int low = high != -1 ? Character.digit(segment.charAt(i + 2), 16) : -1;
+            if (low == -1)
+                return null;
+            bytes.write(high << 4 | low);
+            i += 2;
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void writeTopic(JsonWriter json, Topic topic) throws IOException {
+        long version = topic.getVersion();
+        Message msg = topic.getLastMsg();
+        json.beginObject();
+        json.name("name").value(topic.name);
+        json.name("id").value(topic.getId());
+        json.name("value");
+        if (msg == null)
+            json.nullValue();
+        else if (Double.isNaN(msg.asDouble))
+            json.value(msg.getText());
+        else
+            json.value(msg.asDouble);
+        json.name("version").value(version);
+        json.endObject();
+    }
+
+    /**
+     * Sends the headers of a JSON response whose body is written afterwards. The length of the body is
+     * not known in advance, the server frames it while it is written.
+     *
+     * @param toClient the output stream of the response.
+     * @return a writer for the body.
+     * @throws IOException if writing fails.
+     */
+    static JsonWriter startResponse(OutputStream toClient) throws IOException {
+        toClient.write(("HTTP/1.1 200 OK\r\n" +
+                "Content-Type: application/json\r\n" +
+                "Cache-Control: no-cache\r\n" +
+                "\r\n").getBytes());
+        return new JsonWriter(toClient);
+    }
+
+    static void sendError(OutputStream toClient, String status, String message) throws IOException {
+        StringBuilder json = new StringBuilder("{\"error\":");
+        TopicUpdates.appendJsonString(json, message);
+        byte[] body = json.append('}').toString().getBytes(StandardCharsets.UTF_8);
+        toClient.write(("HTTP/1.1 " + status + "\r\n" +
+                "Content-Type: application/json\r\n" +
+                "Content-Length: " + body.length + "\r\n" +
+                "\r\n").getBytes());
+        toClient.write(body);
+        toClient.flush();
+    }
+}
@@ -4,26 +4,41 @@ import graph.Message;
 import graph.Topic;
 import graph.TopicManagerSingleton;
 import server.RequestParser.RequestInfo;
-import views.HtmlReader;
+import views.HtmlTemplate;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
 
 /**
  * Displays Topic values in table
+ * <p>
+ * The table rows and the values map are rendered once per version of the topics and kept as bytes, so a
+ * dashboard polling the page costs nearly nothing while no value changes. When the version moves, only the
+ * rows of the topics published since are formatted again.
  */
 public class TopicDisplayer implements Servlet {
+    private static final String PLACE_TABLE = "<!--PLACE_TABLE-->";
+    private static final String PLACE_VALUES = "\"PLACE_VALUES\":\"VALUES\"";
+
+    private final HtmlTemplate template = new HtmlTemplate("html_files/values.html", PLACE_TABLE, PLACE_VALUES);
+    private volatile Snapshot snapshot = new Snapshot(-1, new byte[0], new byte[0], new HashMap<>());
+
     @Override
     public void handle(RequestInfo ri, OutputStream toClient) throws IOException {
         sendMessage(ri.getParameters().get("topic"), ri.getParameters().get("message"));
 
-        String content = HtmlReader.readHtmlFile("html_files/values.html");
-
-        String tableContent = createTable();
-        String valuesContent = createValuesMap();
-        content = content != null ? content.replace("<!--PLACE_TABLE-->", tableContent) : null;
-        content = content != null ? content.replace("\"PLACE_VALUES\":\"VALUES\"", valuesContent) : null;
-        sendContent(content.split("\n"), toClient);
+        Snapshot current = currentSnapshot();
+        // The length of the page is not known in advance, the server frames the body while it is written
+        toClient.write(("HTTP/1.1 200 OK\r\n").getBytes());
+        toClient.write(("Content-Type: text/html\r\n").getBytes());
+        toClient.write(("\r\n").getBytes());
+        template.render(toClient, out -> out.write(current.table), out -> out.write(current.values));
+        toClient.flush();
     }
 
     @Override
@@ -40,77 +55,126 @@ public class TopicDisplayer implements Servlet {
      *              If no matching topic is found, no action is taken.
      */
     private void sendMessage(String topic, String msg) {
-        TopicManagerSingleton.TopicManager tm = TopicManagerSingleton.get();
-        for (Topic t : tm.getTopics()) {
-            if (t.name.equals(topic)) {
-                t.publish(new Message(msg));
-                break;
-            }
-        }
+        if (topic == null || msg == null)
+            return;
+        Topic t = TopicManagerSingleton.get().findTopic(topic);
+        if (t != null)
+            t.publish(new Message(msg));
     }
 
     /**
-     * This function generates a string representation of the topics and their latest messages,
-     * formatted as an HTML table.
+     * Returns the rendered table and values map, rendering them again if the topics changed since.
      *
-     * @return A string containing the HTML representation of the topics and their latest messages.
-     * Each row in the table represents a topic, with the topic name and the latest message displayed.
+     * @return the snapshot of the current version.
      */
-    private String createTable() {
+    private Snapshot currentSnapshot() {
         TopicManagerSingleton.TopicManager tm = TopicManagerSingleton.get();
-        StringBuilder tableContent = new StringBuilder();
+        // The version is read first, a publish during rendering makes the next request render again
+        long version = tm.getVersion();
+        Snapshot current = snapshot;
+        if (current.version == version)
+            return current;
+
+        Map<Topic, Row> rows = new HashMap<>();
+        ByteArrayOutputStream table = new ByteArrayOutputStream();
+        ByteArrayOutputStream values = new ByteArrayOutputStream();
         for (Topic topic : tm.getTopics()) {
-            tableContent.append("<tr><td>");
-            tableContent.append(topic.name);
-            tableContent.append("</td><td>");
-            Message msg;
-            if ((msg = topic.getLastMsg()) != null) {
-                if (Double.isNaN(msg.asDouble))
-                    tableContent.append(msg.asText);
-                else
-                    tableContent.append(String.format("%.02f", msg.asDouble));
-            }
-            tableContent.append("</td></tr>");
+            Row row = current.rows.get(topic);
+            if (row == null || row.version != topic.getVersion() || row.id != topic.getId())
+                row = createRow(topic);
+            rows.put(topic, row);
+            table.write(row.tableRow, 0, row.tableRow.length);
+            values.write(row.value, 0, row.value.length);
         }
-        return tableContent.toString();
+        current = new Snapshot(version, table.toByteArray(), values.toByteArray(), rows);
+        snapshot = current;
+        return current;
     }
 
     /**
-     * This function generates a string representation of the latest messages for each topic,
-     * formatted as a JSON object.
+     * Renders the table row and the values map entry of a topic.
+     * The row shows the topic name and the latest message. The entry maps the topic ID to the latest message,
+     * it is empty if nothing was published to the topic.
      *
-     * @return A string containing the latest messages for each topic, formatted as a JSON object.
-     * The keys are the topic IDs, and the values are the corresponding latest messages.
+     * @param topic The topic.
+     * @return The rendered row.
      */
-    private String createValuesMap() {
-        TopicManagerSingleton.TopicManager tm = TopicManagerSingleton.get();
-        StringBuilder valuesContent = new StringBuilder();
-        for (Topic topic : tm.getTopics()) {
-            if (topic.getLastMsg() == null)
-                continue;
-
-            if (Double.isNaN(topic.getLastMsg().asDouble))
-                valuesContent.append(String.format("\"%s\": %s,\n", topic.getId(), topic.getLastMsg().asText));
-            else {
-                valuesContent.append(String.format("\"%s\": %.02f,\n", topic.getId(), topic.getLastMsg().asDouble));
+    private Row createRow(Topic topic) {
+        long version = topic.getVersion();
+        String id = topic.getId();
+        StringBuilder tableRow = new StringBuilder();
+        StringBuilder value = new StringBuilder();
+        tableRow.append("<tr><td>");
+        appendHtml(tableRow, topic.name);
+        tableRow.append("</td><td>");
+        Message msg;
+        if ((msg = topic.getLastMsg()) != null) {
+            TopicUpdates.appendJsonString(value, id);
+            value.append(": ");
+            if (Double.isNaN(msg.asDouble)) {
+                appendHtml(tableRow, msg.getText());
+                // Text goes into the page script as a string literal, so it cannot end the literal or the script
+                TopicUpdates.appendJsonString(value, msg.getText());
+            } else {
+                String number = String.format(Locale.ROOT, "%.2f", msg.asDouble);
+                tableRow.append(number);
+                value.append(number);
             }
+            value.append(",\n");
         }
-        return valuesContent.toString();
+        tableRow.append("</td></tr>");
+        return new Row(version, id, tableRow.toString().getBytes(StandardCharsets.UTF_8),
+                value.toString().getBytes(StandardCharsets.UTF_8));
     }
 
     /**
-     * Sends the content to the client using the provided output stream.
-     * The content is formatted as an HTTP response with a 200 OK status code and a text/html content type.
-     *
-     * @param content  The content to be sent to the client. Each string in the array represents a line of content.
-     * @param toClient The output stream to which the content will be written.
-     * @throws IOException If an I/O error occurs while writing to the output stream.
+     * Appends text to HTML, escaping the characters that would be read as markup.
      */
-    private void sendContent(String[] content, OutputStream toClient) throws IOException {
-        toClient.write(("HTTP/1.1 200 OK\r\n").getBytes());
-        toClient.write(("Content-Type: text/html\r\n").getBytes());
-        toClient.write(("\r\n").getBytes());
-        for (String line : content)
-            toClient.write(line.getBytes());
+    private static void appendHtml(StringBuilder html, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '<')
+                html.append("&lt;");
+            else if (c == '>')
+                html.append("&gt;");
+            else if (c == '&')
+                html.append("&amp;");
+            else
+                html.append(c);
+        }
+    }
+
+    /**
+     * The rendered table row and values map entry of a topic, at a version of the topic.
+     */
+    private static class Row {
+        final long version;
+        final String id;
+        final byte[] tableRow;
+        final byte[] value;
+
+        Row(long version, String id, byte[] tableRow, byte[] value) {
+            this.version = version;
+            this.id = id;
+            this.tableRow = tableRow;
+            this.value = value;
+        }
+    }
+
+    /**
+     * The rendered table and values map at a version of the topics.
+     */
+    private static class Snapshot {
+        final long version;
+        final byte[] table;
+        final byte[] values;
+        final Map<Topic, Row> rows;
+
+        Snapshot(long version, byte[] table, byte[] values, Map<Topic, Row> rows) {
+            this.version = version;
+            this.table = table;
+            this.values = values;
+            this.rows = rows;
+        }
     }
 }
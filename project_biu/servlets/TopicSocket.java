@@ -0,0 +1,134 @@
+package servlets;
+
+import graph.Message;
+import graph.Topic;
+import graph.TopicManagerSingleton;
+import server.RequestParser.RequestInfo;
+import server.WebSocket;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Publishes and streams topic values over a WebSocket, so a client feeding values at a high rate keeps
+ * a single connection instead of sending a request per value.
+ * <p>
+ * Each text message from the client holds one or more lines of the form {@code topic=value}, which are
+ * published in order. Lines for unknown topics are ignored. The client receives the changed topic values
+ * as JSON arrays, in the format of the {@link TopicStreamer} events.
+ * <p>
+ * Messages are published on the thread that reads them, so a client that sends faster than the graph
+ * computes is slowed down by the connection itself. Updates are sent from a second thread per client and
+ * are coalesced while the client reads them slowly.
+ */
+public class TopicSocket implements Servlet {
+    private static final long DEFAULT_INTERVAL = 100;
+    private static final long HEARTBEAT_INTERVAL = 15000;
+
+    private final long interval;
+    private final Set<TopicUpdates> clients;
+
+    public TopicSocket() {
+        this(DEFAULT_INTERVAL);
+    }
+
+    /**
+     * Constructs a new TopicSocket.
+     *
+     * @param interval the minimum time between two updates sent to a client, in milliseconds.
+     */
+    public TopicSocket(long interval) {
+        this.interval = interval;
+        this.clients = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Upgrades the connection to a WebSocket and serves it until the client closes it.
+     *
+     * @param ri       The parsed upgrade request.
+     * @param toClient The OutputStream to write the handshake and the frames to.
+     * @throws IOException If an I/O error occurs during the handshake.
+     */
+    @Override
+    public void handle(RequestInfo ri, OutputStream toClient) throws IOException {
+        WebSocket socket = WebSocket.accept(ri, toClient);
+        if (socket == null)
+            return;
+
+        TopicUpdates updates = new TopicUpdates("TopicSocket-" + Thread.currentThread().getName());
+        clients.add(updates);
+        updates.subscribe();
+        Thread sender = new Thread(() -> sendUpdates(updates, socket), updates.getName() + "-sender");
+        sender.setDaemon(true);
+        sender.start();
+        try {
+            String message;
+            while ((message = socket.receive()) != null) {
+                publish(message);
+            }
+        } catch (IOException e) {
+            // The client disconnected
+        } finally {
+            updates.close();
+            clients.remove(updates);
+            sender.interrupt();
+            try {
+                sender.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void sendUpdates(TopicUpdates updates, WebSocket socket) {
+        try {
+            updates.stream(interval, HEARTBEAT_INTERVAL, new TopicUpdates.Sink() {
+                @Override
+                public void send(String json) throws IOException {
+                    socket.send(json);
+                }
+
+                @Override
+                public void heartbeat() throws IOException {
+                    socket.ping();
+                }
+            });
+        } catch (IOException e) {
+            // The client disconnected, the reading thread notices it as well
+        }
+    }
+
+    /**
+     * Publishes the values of a message.
+     *
+     * @param message lines of the form topic=value.
+     */
+    private void publish(String message) {
+        TopicManagerSingleton.TopicManager tm = TopicManagerSingleton.get();
+        int start = 0;
+        while (start < message.length()) {
+            int end = message.indexOf('\n', start);
+            if (end == -1)
+                end = message.length();
+            int eq = message.indexOf('=', start);
+            if (eq != -1 && eq < end) {
+                Topic topic = tm.findTopic(message.substring(start, eq).trim());
+                if (topic != null)
+                    topic.publish(new Message(message.substring(eq + 1, end).trim()));
+            }
+            start = end + 1;
+        }
+    }
+
+    /**
+     * Stops sending updates to the connected clients.
+     */
+    @Override
+    public void close() throws IOException {
+        for (TopicUpdates updates : clients) {
+            updates.close();
+        }
+    }
+}
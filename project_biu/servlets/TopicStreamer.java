@@ -0,0 +1,92 @@
+package servlets;
+
+import server.RequestParser.RequestInfo;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Streams topic values to the client as Server-Sent Events.
+ * The client first receives the current value of every topic, then only the topics that changed,
+ * coalesced by {@link TopicUpdates} and sent at most once per interval.
+ * <p>
+ * Every client keeps a thread for as long as it is connected. Registered as a streaming servlet, see
+ * {@link server.HTTPServer#setStreaming(String, String)}, that is a stream thread rather than one of the
+ * threads serving ordinary requests.
+ */
+public class TopicStreamer implements Servlet {
+    private static final long DEFAULT_INTERVAL = 250;
+    // A comment line is sent after this much silence, so a client that went away is noticed
+    private static final long HEARTBEAT_INTERVAL = 15000;
+
+    private final long interval;
+    private final Set<TopicUpdates> clients;
+
+    public TopicStreamer() {
+        this(DEFAULT_INTERVAL);
+    }
+
+    /**
+     * Constructs a new TopicStreamer.
+     *
+     * @param interval the minimum time between two events sent to a client, in milliseconds.
+     */
+    public TopicStreamer(long interval) {
+        this.interval = interval;
+        this.clients = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Sends the event stream until the client disconnects or the servlet is closed.
+     *
+     * @param ri       The parsed request information.
+     * @param toClient The OutputStream to write the events to.
+     * @throws IOException If an I/O error occurs while writing the response header.
+     */
+    @Override
+    public void handle(RequestInfo ri, OutputStream toClient) throws IOException {
+        toClient.write(("HTTP/1.1 200 OK\r\n" +
+                "Content-Type: text/event-stream\r\n" +
+                "Cache-Control: no-cache\r\n" +
+                "\r\n").getBytes());
+        // The client knows the stream is open before the first update
+        toClient.flush();
+
+        TopicUpdates updates = new TopicUpdates("TopicStreamer-" + Thread.currentThread().getName());
+        clients.add(updates);
+        updates.subscribe();
+        try {
+            updates.stream(interval, HEARTBEAT_INTERVAL, new TopicUpdates.Sink() {
+                @Override
+                public void send(String json) throws IOException {
+                    toClient.write(("event: values\ndata: " + json + "\n\n").getBytes(StandardCharsets.UTF_8));
+                    toClient.flush();
+                }
+
+                @Override
+                public void heartbeat() throws IOException {
+                    toClient.write(":\n\n".getBytes());
+                    toClient.flush();
+                }
+            });
+        } catch (IOException e) {
+            // The client disconnected
+        } finally {
+            updates.close();
+            clients.remove(updates);
+        }
+    }
+
+    /**
+     * Ends the streams of all connected clients.
+     */
+    @Override
+    public void close() throws IOException {
+        for (TopicUpdates updates : clients) {
+            updates.close();
+        }
+    }
+}
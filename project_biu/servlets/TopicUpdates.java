@@ -0,0 +1,174 @@
+package servlets;
+
+import graph.Agent;
+import graph.Message;
+import graph.Topic;
+import graph.TopicManagerSingleton;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Collects the values published to the topics for a client that streams them.
+ * Publishing only records the latest value of the topic and wakes up the streaming thread, so a slow client
+ * never blocks {@link Topic#publish}. A topic published several times between two updates is sent once
+ * with its latest value, so the memory held for a client is bounded by the number of topics.
+ */
+class TopicUpdates implements Agent {
+    private final String name;
+    // Latest value by topic name
+    private final ConcurrentHashMap<String, Message> changed;
+    private volatile Thread streamer;
+    private volatile boolean closed;
+
+    /**
+     * Receives a batch of changed values.
+     */
+    interface Sink {
+        /**
+         * @param json the changed values as a JSON array with the name, graph id and value of each topic, the id
+     *             is null for a topic that no longer exists.
+         * @throws IOException if the client cannot be written to.
+         */
+        void send(String json) throws IOException;
+
+        /**
+         * Called after a long time without changes, so a client that went away is noticed.
+         *
+         * @throws IOException if the client cannot be written to.
+         */
+        void heartbeat() throws IOException;
+    }
+
+    TopicUpdates(String name) {
+        this.name = name;
+        this.changed = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Starts receiving the published values, the current value of every topic is the first update.
+     */
+    void subscribe() {
+        TopicManagerSingleton.TopicManager tm = TopicManagerSingleton.get();
+        tm.addListener(this);
+        for (Topic topic : tm.getTopics()) {
+            if (topic.getLastMsg() != null)
+                changed.putIfAbsent(topic.name, topic.getLastMsg());
+        }
+    }
+
+    /**
+     * Sends the changed values whenever there are any, until the updates are closed or the thread is interrupted.
+     *
+     * @param interval  the minimum time between two updates, in milliseconds.
+     * @param heartbeat the time without changes after which the sink is told to send a heartbeat, in milliseconds.
+     * @param sink      the receiver of the updates.
+     * @throws IOException if the sink fails.
+     */
+    void stream(long interval, long heartbeat, Sink sink) throws IOException {
+        streamer = Thread.currentThread();
+        long nextUpdate = 0;
+        while (!closed && !Thread.currentThread().isInterrupted()) {
+            if (changed.isEmpty()) {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(heartbeat));
+                if (changed.isEmpty() && !closed && !Thread.currentThread().isInterrupted())
+                    sink.heartbeat();
+                continue;
+            }
+            long wait = nextUpdate - System.currentTimeMillis();
+            if (wait > 0) {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(wait));
+                continue;
+            }
+            sink.send(drain());
+            nextUpdate = System.currentTimeMillis() + interval;
+        }
+    }
+
+    /**
+     * Takes the changed values and formats them as a JSON array.
+     *
+     * @return the JSON array.
+     */
+    private String drain() {
+        TopicManagerSingleton.TopicManager tm = TopicManagerSingleton.get();
+        StringBuilder json = new StringBuilder("[");
+        for (Map.Entry<String, Message> entry : changed.entrySet()) {
+            String topic = entry.getKey();
+            Message msg = entry.getValue();
+            // Only this value is removed, a value published meanwhile stays for the next update
+            changed.remove(topic, msg);
+            if (json.length() > 1)
+                json.append(',');
+            json.append("{\"topic\":");
+            appendJsonString(json, topic);
+            json.append(",\"id\":");
+            // Looked up without creating it, the topics may have been cleared since the value was published
+            Topic t = tm.findTopic(topic);
+            appendJsonString(json, t != null ? t.getId() : null);
+            json.append(",\"value\":");
+            // JSON has no numbers for these, they are sent as text
+            if (Double.isNaN(msg.asDouble) || Double.isInfinite(msg.asDouble))
+                appendJsonString(json, msg.getText());
+            else
+                json.append(String.format(Locale.ROOT, "%.2f", msg.asDouble));
+            json.append('}');
+        }
+        return json.append(']').toString();
+    }
+
+    static void appendJsonString(StringBuilder json, String value) {
+        if (value == null) {
+            json.append("null");
+            return;
+        }
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\')
+                json.append('\\').append(c);
+            else if (c == '<')
+                json.append("\\u003c"); // So a string in a page script cannot hold "</script>"
+            else if (c < 0x20)
+                json.append(String.format("\\u%04x", (int) c));
+            else
+                json.append(c);
+        }
+        json.append('"');
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void reset() {
+        changed.clear();
+    }
+
+    @Override
+    public void callback(String topic, Message msg) {
+        changed.put(topic, msg);
+        Thread thread = streamer;
+        if (thread != null)
+            LockSupport.unpark(thread);
+    }
+
+    /**
+     * Stops receiving published values and ends the stream.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        TopicManagerSingleton.get().removeListener(this);
+        Thread thread = streamer;
+        if (thread != null)
+            LockSupport.unpark(thread);
+    }
+}
@@ -3,7 +3,17 @@ package views;
 import graph.Graph;
 import graph.Node;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
 public class HtmlGraphWriter {
+    /**
+     * The placeholder of the graph template that is replaced by the graph data.
+     */
+    public static final String GRAPH_DATA = "\"GRAPH_DATA\"";
 
     /**
      * This function generates an HTML representation of a given graph.
@@ -19,25 +29,57 @@ public class HtmlGraphWriter {
         }
 
         String graphJson = GraphToJson(graph);
-        String modifiedHtml = htmlTemplate.replace("\"GRAPH_DATA\"", graphJson);
+        String modifiedHtml = htmlTemplate.replace(GRAPH_DATA, graphJson);
         return modifiedHtml.split("\n");
     }
 
+    /**
+     * Writes the HTML representation of a graph to a stream.
+     *
+     * @param graph    The graph to be represented in HTML.
+     * @param template The graph template, with {@link #GRAPH_DATA} as its placeholder.
+     * @param out      The stream to write the HTML to.
+     * @return false if the template file cannot be read, in which case nothing is written.
+     * @throws IOException If writing to the stream fails.
+     */
+    public static boolean writeGraphHTML(Graph graph, HtmlTemplate template, OutputStream out) throws IOException {
+        return template.render(out, o -> writeGraphJson(graph, o));
+    }
+
     /**
      * Converts a given graph into a JSON string representation.
      *
      * @param graph The graph to be converted.
-     * @return A JSON string representing the graph. Each node in the graph is represented as a JSON object with the following properties:
+     * @return A JSON string representing the graph, see {@link #writeGraphJson(Graph, OutputStream)}.
+     */
+    static String GraphToJson(Graph graph) {
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        try {
+            writeGraphJson(graph, json);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // Not thrown by a ByteArrayOutputStream
+        }
+        return new String(json.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes a given graph as JSON straight to a stream.
+     * Each node in the graph is written as a JSON object with the following properties:
      * - "id": The unique identifier of the node.
      * - "type": The type of the node (either "Topic" or "Agent").
      * - "name": The name of the node.
      * - "edges": An array of unique identifiers of the nodes connected to the current node.
+     *
+     * @param graph The graph to be written.
+     * @param out   The stream to write the JSON to. It is not flushed.
+     * @throws IOException If writing to the stream fails.
      */
-    static String GraphToJson(Graph graph) {
-        StringBuilder json = new StringBuilder("[");
+    static void writeGraphJson(Graph graph, OutputStream out) throws IOException {
+        JsonWriter json = new JsonWriter(out);
+        json.beginArray();
         for (Node node : graph) {
-            json.append("{");
-            json.append("\"id\":\"").append(node.toString().split("@")[1]).append("\",\n");
+            json.beginObject();
+            json.name("id").value(nodeId(node));
             String type = "";
             String name = node.getName();
             if (name.charAt(0) == 'T') {
@@ -45,24 +87,34 @@ public class HtmlGraphWriter {
                 name = name.substring(1);
             } else if (name.charAt(0) == 'A') {
                 type = "Agent";
-                name = name.split("\\.")[1];
+                name = agentClass(name);
             }
-            json.append("\"type\":\"").append(type).append("\",\n");
-            json.append("\"name\":\"").append(name).append("\",\n");
-            json.append("\"edges\":[");
-            boolean first = true;
+            json.name("type").value(type);
+            json.name("name").value(name);
+            json.name("edges").beginArray();
             for (Node edge : node.getEdges()) {
-                if (!first) {
-                    json.append(",");
-                }
-                json.append("\"").append(edge.toString().split("@")[1]).append("\"");
-                first = false;
+                json.value(nodeId(edge));
             }
-
-            json.append("]");
-            json.append("},\n");
+            json.endArray();
+            json.endObject();
         }
-        json.append("]");
-        return json.toString();
+        json.endArray();
+        json.finish();
+    }
+
+    /**
+     * @return the identity hash of the node in hex, as {@link Object#toString()} writes it after the '@'.
+     */
+    private static String nodeId(Node node) {
+        return Integer.toHexString(System.identityHashCode(node));
+    }
+
+    /**
+     * @return the simple class name in an agent node name such as "Agraph.PlusAgent".
+     */
+    private static String agentClass(String name) {
+        int start = name.indexOf('.') + 1;
+        int end = name.indexOf('.', start);
+        return name.substring(start, end == -1 ? name.length() : end);
     }
 }
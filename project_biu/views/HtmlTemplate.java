@@ -0,0 +1,157 @@
+package views;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An HTML file with placeholders that are filled in while it is written to a response.
+ * The file is parsed once into encoded byte segments and the slots between them, and parsed again only when
+ * it changes on disk, so rendering writes the segments as they are and lets each slot write its own content
+ * straight to the stream.
+ */
+public class HtmlTemplate {
+    private final Path path;
+    private final String[] placeholders;
+    private volatile Parsed parsed;
+
+    /**
+     * Writes the content of a placeholder.
+     */
+    public interface Slot {
+        void write(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Constructs a new HtmlTemplate. The file is read on first use.
+     *
+     * @param filePath     the path to the HTML file.
+     * @param placeholders the placeholders of the file, in the order their slots are passed to {@link #render}.
+     */
+    public HtmlTemplate(String filePath, String... placeholders) {
+        this.path = Paths.get(filePath);
+        this.placeholders = placeholders.clone();
+    }
+
+    /**
+     * Writes the template with its placeholders filled in.
+     * Every occurrence of a placeholder is replaced by the output of its slot.
+     *
+     * @param out   the stream to write to.
+     * @param slots the slots of the placeholders, in the order the placeholders were given.
+     * @return false if the file could not be read, in which case nothing is written.
+     * @throws IOException if writing fails.
+     */
+    public boolean render(OutputStream out, Slot... slots) throws IOException {
+        Parsed current = current();
+        if (current == null)
+            return false;
+        for (int i = 0; i < current.segments.length; i++) {
+            out.write(current.segments[i]);
+            if (i < current.slots.length)
+                slots[current.slots[i]].write(out);
+        }
+        return true;
+    }
+
+    /**
+     * Writes text as UTF-8, for slots that produce strings.
+     *
+     * @param out  the stream to write to.
+     * @param text the text.
+     * @throws IOException if writing fails.
+     */
+    public static void write(OutputStream out, String text) throws IOException {
+        out.write(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns the parsed file, parsing it again if it changed since it was last read.
+     *
+     * @return the parsed file, or null if it cannot be read.
+     */
+    private Parsed current() {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        long size = attributes.size();
+        Parsed current = parsed;
+        if (current != null && current.lastModified == lastModified && current.size == size)
+            return current;
+        synchronized (this) {
+            current = parsed;
+            if (current == null || current.lastModified != lastModified || current.size != size) {
+                try {
+                    current = parse(Files.readString(path, StandardCharsets.UTF_8), lastModified, size);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return null;
+                }
+                parsed = current;
+            }
+            return current;
+        }
+    }
+
+    /**
+     * Splits the content at the placeholders.
+     */
+    private Parsed parse(String content, long lastModified, long size) {
+        List<byte[]> segments = new ArrayList<>();
+        List<Integer> slots = new ArrayList<>();
+        int from = 0;
+        while (true) {
+            int next = -1;
+            int slot = -1;
+            for (int i = 0; i < placeholders.length; i++) {
+                int index = content.indexOf(placeholders[i], from);
+                if (index != -1 && (next == -1 || index < next)) {
+                    next = index;
+                    slot = i;
+                }
+            }
+            if (next == -1)
+                break;
+            segments.add(content.substring(from, next).getBytes(StandardCharsets.UTF_8));
+            slots.add(slot);
+            from = next + placeholders[slot].length();
+        }
+        segments.add(content.substring(from).getBytes(StandardCharsets.UTF_8));
+        int[] slotArray = new int[slots.size()];
+        for (int i = 0; i < slotArray.length; i++) {
+            slotArray[i] = slots.get(i);
+        }
+        return new Parsed(segments.toArray(new byte[0][]), slotArray, lastModified, size);
+    }
+
+    /**
+     * A parsed file: the segments with a slot between each two of them.
+     */
+    private static class Parsed {
+        final byte[][] segments;
+        final int[] slots;
+        final long lastModified;
+        final long size;
+
+        Parsed(byte[][] segments, int[] slots, long lastModified, long size) {
+            this.segments = segments;
+            this.slots = slots;
+            this.lastModified = lastModified;
+            this.size = size;
+        }
+    }
+}
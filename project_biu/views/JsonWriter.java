@@ -0,0 +1,215 @@
+package views;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes JSON to a stream as it is produced, without building the document in memory.
+ * Characters are encoded as UTF-8 into a small buffer that is passed on whenever it fills up, and commas
+ * between values are inserted automatically.
+ */
+public class JsonWriter {
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_DEPTH = 64;
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    private final OutputStream out;
+    private final byte[] buf = new byte[BUFFER_SIZE];
+    private int count;
+    // Whether the array or object at each depth already holds a value
+    private final boolean[] hasValue = new boolean[MAX_DEPTH];
+    private int depth;
+    // A name was written and its value comes next
+    private boolean afterName;
+
+    public JsonWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    public JsonWriter beginObject() throws IOException {
+        return open('{');
+    }
+
+    public JsonWriter endObject() throws IOException {
+        return close('}');
+    }
+
+    public JsonWriter beginArray() throws IOException {
+        return open('[');
+    }
+
+    public JsonWriter endArray() throws IOException {
+        return close(']');
+    }
+
+    /**
+     * Writes the name of the next member of an object.
+     *
+     * @param name the name.
+     * @return this writer.
+     * @throws IOException if writing fails.
+     */
+    public JsonWriter name(String name) throws IOException {
+        separate();
+        string(name);
+        put(':');
+        afterName = true;
+        return this;
+    }
+
+    /**
+     * @param value the string, or null.
+     * @return this writer.
+     * @throws IOException if writing fails.
+     */
+    public JsonWriter value(String value) throws IOException {
+        separate();
+        if (value == null)
+            ascii("null");
+        else
+            string(value);
+        return this;
+    }
+
+    public JsonWriter value(long value) throws IOException {
+        separate();
+        ascii(Long.toString(value));
+        return this;
+    }
+
+    /**
+     * Writes a number. JSON has no NaN or infinity, those are written as strings.
+     *
+     * @param value the number.
+     * @return this writer.
+     * @throws IOException if writing fails.
+     */
+    public JsonWriter value(double value) throws IOException {
+        if (!Double.isFinite(value))
+            return value(Double.toString(value));
+        separate();
+        if (value == Math.rint(value) && Math.abs(value) < 1e15)
+            ascii(Long.toString((long) value));
+        else
+            ascii(Double.toString(value));
+        return this;
+    }
+
+    public JsonWriter value(boolean value) throws IOException {
+        separate();
+        ascii(value ? "true" : "false");
+        return this;
+    }
+
+    public JsonWriter nullValue() throws IOException {
+        separate();
+        ascii("null");
+        return this;
+    }
+
+    /**
+     * Passes the buffered bytes on and flushes the stream.
+     *
+     * @throws IOException if writing fails.
+     */
+    public void flush() throws IOException {
+        drain();
+        out.flush();
+    }
+
+    /**
+     * Passes the buffered bytes on without flushing the stream, for JSON that is part of a larger document.
+     *
+     * @throws IOException if writing fails.
+     */
+    public void finish() throws IOException {
+        drain();
+    }
+
+    private JsonWriter open(char c) throws IOException {
+        separate();
+        if (depth == MAX_DEPTH)
+            throw new IllegalStateException("JSON nested too deeply");
+        put(c);
+        hasValue[depth++] = false;
+        return this;
+    }
+
+    private JsonWriter close(char c) throws IOException {
+        if (depth == 0)
+            throw new IllegalStateException("No open JSON " + (c == '}' ? "object" : "array"));
+        depth--;
+        put(c);
+        return this;
+    }
+
+    /**
+     * Writes the comma before a value, unless it is the first of its array or object or follows a name.
+     */
+    private void separate() throws IOException {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        if (depth > 0) {
+            if (hasValue[depth - 1])
+                put(',');
+            hasValue[depth - 1] = true;
+        }
+    }
+
+    private void string(String s) throws IOException {
+        put('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                put('\\');
+                put(c);
+            } else if (c < 0x20) {
+                put('\\');
+                put('u');
+                put('0');
+                put('0');
+                put(HEX[c >> 4]);
+                put(HEX[c & 0xF]);
+            } else if (c < 0x80) {
+                put(c);
+            } else if (c < 0x800) {
+                put(0xC0 | (c >> 6));
+                put(0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                put(0xF0 | (cp >> 18));
+                put(0x80 | ((cp >> 12) & 0x3F));
+                put(0x80 | ((cp >> 6) & 0x3F));
+                put(0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                put('?');
+            } else {
+                put(0xE0 | (c >> 12));
+                put(0x80 | ((c >> 6) & 0x3F));
+                put(0x80 | (c & 0x3F));
+            }
+        }
+        put('"');
+    }
+
+    private void ascii(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            put(s.charAt(i));
+        }
+    }
+
+    private void put(int b) throws IOException {
+        if (count == buf.length)
+            drain();
+        buf[count++] = (byte) b;
+    }
+
+    private void drain() throws IOException {
+        if (count > 0) {
+            out.write(buf, 0, count);
+            count = 0;
+        }
+    }
+}